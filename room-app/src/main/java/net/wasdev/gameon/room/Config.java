@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.logging.Level;
+
+/**
+ * Reads optional tuning values from the environment, falling back to the
+ * supplied default when unset or unparseable.
+ */
+public class Config {
+
+  public static String getString(String envName, String defaultValue) {
+    String value = System.getenv(envName);
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  public static int getInt(String envName, int defaultValue) {
+    return (int) getLong(envName, defaultValue);
+  }
+
+  public static long getLong(String envName, long defaultValue) {
+    String value = System.getenv(envName);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      Log.log(Level.WARNING, null, "Ignoring non numeric value {0} for {1}, using {2}", value, envName,
+          defaultValue);
+      return defaultValue;
+    }
+  }
+}
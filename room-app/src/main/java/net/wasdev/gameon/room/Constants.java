@@ -23,6 +23,7 @@ public interface Constants {
   String USERNAME = "username";
   String USERID = "userId";
   String BOOKMARK = "bookmark";
+  String EPOCH = "epoch";
   String CONTENT = "content";
   String LOCATION = "location";
   String TYPE = "type";
@@ -32,13 +33,49 @@ public interface Constants {
   String EXITID = "exitId";
   String STATE = "state";
 
+  // websocket session user properties
+  String SESSION_PLAYER = "gameon.player";
+  String SESSION_SENDER = "gameon.sender";
+
   // env var names
   String ENV_ROOM_SVC = "ROOT_SERVICE_URL";
   String ENV_MAP_SVC = "MAP_SERVICE_URL";
   String ENV_MAP_HEALTH_SVC = "MAP_HEALTH_SERVICE_URL";
+  String ENV_REPLAY_BUFFER_FRAMES = "REPLAY_BUFFER_FRAMES";
+  String ENV_REPLAY_BUFFER_MAX_BYTES = "REPLAY_BUFFER_MAX_BYTES";
+  String ENV_NODE_ID = "ROOM_NODE_ID";
+  String ENV_EVENT_BUS = "ROOM_EVENT_BUS";
+  String ENV_EVENT_TOPIC = "ROOM_EVENT_TOPIC";
+  String ENV_EVENT_BUS_QUEUE_SIZE = "ROOM_EVENT_BUS_QUEUE_SIZE";
+  String ENV_EVENT_BUS_MAX_BLOCK_MILLIS = "ROOM_EVENT_BUS_MAX_BLOCK_MILLIS";
+  String ENV_HEARTBEAT_MILLIS = "ROOM_HEARTBEAT_MILLIS";
+  String ENV_GROUP_RULES = "ROOM_GROUP_RULES";
+  String ENV_SEND_TIMEOUT_MILLIS = "ROOM_SEND_TIMEOUT_MILLIS";
+  String ENV_SESSION_MAX_QUEUED_BYTES = "ROOM_SESSION_MAX_QUEUED_BYTES";
+  String ENV_COALESCE_MICROS = "ROOM_COALESCE_MICROS";
+  String ENV_COALESCE_MAX_BYTES = "ROOM_COALESCE_MAX_BYTES";
+  String ENV_WS_DEFLATE = "ROOM_WS_DEFLATE";
+  String ENV_PLAYER_COMMAND_BURST = "ROOM_PLAYER_COMMAND_BURST";
+  String ENV_PLAYER_COMMANDS_PER_SECOND = "ROOM_PLAYER_COMMANDS_PER_SECOND";
+  String ENV_GROUP_COMMAND_BURST = "ROOM_GROUP_COMMAND_BURST";
+  String ENV_GROUP_COMMANDS_PER_SECOND = "ROOM_GROUP_COMMANDS_PER_SECOND";
+  String ENV_CONDITION_BACKEND = "ROOM_CONDITION_BACKEND";
+  String ENV_HTTP_MAX_CONNECTIONS = "ROOM_HTTP_MAX_CONNECTIONS";
+  String ENV_HTTP_MAX_CONNECTIONS_PER_ROUTE = "ROOM_HTTP_MAX_CONNECTIONS_PER_ROUTE";
+  String ENV_HTTP_CONNECT_TIMEOUT_MILLIS = "ROOM_HTTP_CONNECT_TIMEOUT_MILLIS";
+  String ENV_HTTP_READ_TIMEOUT_MILLIS = "ROOM_HTTP_READ_TIMEOUT_MILLIS";
+  String ENV_HTTP_CONNECTION_TTL_SECONDS = "ROOM_HTTP_CONNECTION_TTL_SECONDS";
+  String ENV_STORY_URL = "ROOM_STORY_URL";
+  String ENV_STORY_CACHE = "ROOM_STORY_CACHE";
+  String ENV_REGISTRATION_RETRY_MIN_MILLIS = "ROOM_REGISTRATION_RETRY_MIN_MILLIS";
+  String ENV_REGISTRATION_RETRY_MAX_MILLIS = "ROOM_REGISTRATION_RETRY_MAX_MILLIS";
+  String ENV_READY_MAX_QUEUED_BYTES = "ROOM_READY_MAX_QUEUED_BYTES";
+  String ENV_LATENCY_WINDOW_SECONDS = "ROOM_LATENCY_WINDOW_SECONDS";
 
   String JNDI_REGISTRATION_SECRET = "mapApiKey";
   String JNDI_SYSTEM_ID = "systemId";
+  String JNDI_KAFKA_URL = "kafkaUrl";
+  String JNDI_TARGET_PLATFORM = "targetPlatform";
   
   Collection<String> ACTIVE_GROUPS = Arrays.asList(new String[]{"redhat1","redhat2","fbtwitter","default"});
   String ROOM_ID = "ozzy.test.colab";
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.List;
+
+/**
+ * Carries the frames a node sends to a group over to the other room nodes, so
+ * players of the same group connected to different nodes all receive them.
+ * <p>
+ * The node that produced the frames has already delivered them to its own
+ * sessions, implementations only hand frames from other nodes to the listener.
+ * Each frame travels with its bookmark, so the other nodes can buffer it for
+ * replay under the same bookmark the owning node gave it, and with the epoch
+ * those bookmarks belong to.
+ * Alongside the frames runs a control channel the nodes use to coordinate
+ * between themselves, control messages reach every node, including the sender.
+ */
+public interface EventBus {
+
+  interface Listener {
+    void onFrames(String groupId, String epoch, long[] bookmarks, List<String> frames);
+  }
+
+  interface ControlListener {
+    void onControl(String message);
+  }
+
+  void start(String nodeId, Listener listener);
+
+  void publish(String groupId, String epoch, long[] bookmarks, List<String> frames);
+
+  void setControlListener(ControlListener listener);
+
+  void publishControl(String message);
+
+  void close();
+}
@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import net.wasdev.gameon.room.LifecycleManager.Holodeck;
+
+/**
+ * Decides which room node runs each group's holodeck programs, by consistent
+ * hashing the group id over the nodes currently alive, so each node only holds
+ * the state and does the work for its share of the groups.
+ * <p>
+ * Nodes find each other by heartbeats on the event bus control channel.
+ * Commands, joins, leaves and events for a group owned elsewhere are forwarded
+ * to the owner over the same channel, and when the set of nodes changes, each group
+ * that moves is handed to its new owner as a snapshot of its state.
+ * <p>
+ * Only groups this node has actually run are handed on, and not until the
+ * membership has settled: a node that has just started knows only itself,
+ * and must hear the others' heartbeats before anything it runs counts as the
+ * group's live state. Snapshots are only taken by the group's owner, from the
+ * node that owned it before, and never over live state of its own.
+ * <p>
+ * A node that gains a group from a node still alive doesn't run it until the
+ * snapshot has arrived, or two heartbeats have passed without one (the old
+ * owner never ran the group). Anything forwarded for the group meanwhile is
+ * held, and run once the group is.
+ */
+public class GroupOwnership implements EventBus.ControlListener {
+  // a forward that keeps missing the owner, as views converge, is given up on.
+  private static final int MAX_HOPS = 3;
+  // forwards held for one group while waiting on its snapshot.
+  private static final int MAX_HELD = 1000;
+
+  private final String nodeId;
+  private final EventBus eventBus;
+  private final Holodeck holodeck;
+  private final long heartbeatMillis;
+  private final LongSupplier clock;
+  private final long startedAt;
+
+  private final Map<String, Long> lastSeenByNodeId = new ConcurrentHashMap<>();
+  private volatile View view;
+  // two heartbeats in, every live node has been heard from.
+  private volatile boolean settled = false;
+  // groups whose live state is held here, from running them or taking them over.
+  private final Set<String> served = ConcurrentHashMap.newKeySet();
+  // who owned each group before the last change of members, and until when their
+  // snapshots are waited for. Both guarded by this.
+  private HashRing handoverFrom;
+  private long handoverUntil;
+  private final Map<String, List<JsonObject>> heldByGroupId = new ConcurrentHashMap<>();
+  private volatile ScheduledFuture<?> heartbeats;
+
+  // ring for one membership, with the owners looked up so far.
+  private static class View {
+    final Set<String> members;
+    final HashRing ring;
+    final Map<String, String> ownerByGroupId = new ConcurrentHashMap<>();
+
+    View(Set<String> members) {
+      this.members = members;
+      this.ring = new HashRing(members);
+    }
+
+    String ownerOf(String groupId) {
+      String owner = ownerByGroupId.get(groupId);
+      if (owner == null) {
+        owner = ring.ownerOf(groupId);
+        ownerByGroupId.put(groupId, owner);
+      }
+      return owner;
+    }
+  }
+
+  public GroupOwnership(String nodeId, EventBus eventBus, Holodeck holodeck) {
+    this(nodeId, eventBus, holodeck, Config.getLong(Constants.ENV_HEARTBEAT_MILLIS, 5000),
+        System::currentTimeMillis);
+  }
+
+  GroupOwnership(String nodeId, EventBus eventBus, Holodeck holodeck, long heartbeatMillis, LongSupplier clock) {
+    this.nodeId = nodeId;
+    this.eventBus = eventBus;
+    this.holodeck = holodeck;
+    this.heartbeatMillis = heartbeatMillis;
+    this.clock = clock;
+    this.startedAt = clock.getAsLong();
+    this.view = new View(Collections.singleton(nodeId));
+    eventBus.setControlListener(this);
+  }
+
+  public void start() {
+    try {
+      ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext()
+          .lookup("concurrent/execSvc");
+      heartbeats = executor.scheduleAtFixedRate(this::heartbeat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    } catch (NamingException e) {
+      throw new IllegalStateException("Unable to obtain executor for room node heartbeats", e);
+    }
+  }
+
+  public void stop() {
+    ScheduledFuture<?> h = heartbeats;
+    if (h != null) {
+      h.cancel(false);
+    }
+  }
+
+  public boolean isLocal(String groupId) {
+    return nodeId.equals(view.ownerOf(groupId));
+  }
+
+  /**
+   * As {@link #isLocal(String)}, noting that the group is about to be run here,
+   * so is handed on if it moves.
+   */
+  public boolean claim(String groupId) {
+    if (!isLocal(groupId)) {
+      return false;
+    }
+    if (awaitingSnapshot(groupId)) {
+      // forwarded to ourselves, and held until the group's state is here.
+      return false;
+    }
+    if (served.add(groupId)) {
+      // not handed over, so nothing sent for the group elsewhere follows on from what runs here.
+      holodeck.restartBookmarks(groupId);
+    }
+    return true;
+  }
+
+  // the group's last owner is still alive, and may yet send its state.
+  private synchronized boolean awaitingSnapshot(String groupId) {
+    if (served.contains(groupId) || handoverFrom == null || clock.getAsLong() >= handoverUntil) {
+      return false;
+    }
+    String from = handoverFrom.ownerOf(groupId);
+    return from != null && !nodeId.equals(from) && view.members.contains(from);
+  }
+
+  public boolean isSettled() {
+    return settled;
+  }
+
+  public void forwardCommand(String groupId, String userid, String content) {
+    eventBus.publishControl(forward("command", groupId, userid).add("content", content).build().toString());
+  }
+
+  public void forwardJoin(String groupId, String userid, String username, boolean resumed) {
+    eventBus.publishControl(forward("join", groupId, userid).add("username", username).add("resumed", resumed)
+        .build().toString());
+  }
+
+  public void forwardLeave(String groupId, String userid) {
+    eventBus.publishControl(forward("leave", groupId, userid).build().toString());
+  }
+
+  /**
+   * Have the owner number and send an event raised here, so a group's bookmarks
+   * only ever come from one node.
+   */
+  public void forwardEvent(String groupId, String eventType, String prefix, String json) {
+    eventBus.publishControl(message("event").add("target", view.ownerOf(groupId)).add("groupId", groupId)
+        .add("eventType", eventType).add("prefix", prefix).add("json", json).build().toString());
+  }
+
+  private JsonObjectBuilder forward(String type, String groupId, String userid) {
+    return message(type).add("target", view.ownerOf(groupId)).add("groupId", groupId).add(Constants.USERID,
+        userid).add("hops", 0);
+  }
+
+  // pass on a forward that reached us after the group moved on.
+  private void forwardAgain(JsonObject msg, String groupId) {
+    int hops = msg.getInt("hops", 0) + 1;
+    if (hops > MAX_HOPS) {
+      Log.log(Level.WARNING, this, "Dropping {0} for group {1}, the nodes don't agree who owns it",
+          msg.getString(Constants.TYPE), groupId);
+      return;
+    }
+    JsonObjectBuilder again = Json.createObjectBuilder();
+    for (Map.Entry<String, JsonValue> e : msg.entrySet()) {
+      again.add(e.getKey(), e.getValue());
+    }
+    eventBus.publishControl(again.add("node", nodeId).add("target", view.ownerOf(groupId)).add("hops", hops)
+        .build().toString());
+  }
+
+  private JsonObjectBuilder message(String type) {
+    return Json.createObjectBuilder().add(Constants.TYPE, type).add("node", nodeId);
+  }
+
+  void heartbeat() {
+    try {
+      eventBus.publishControl(message("heartbeat").build().toString());
+      updateMembers();
+      // no snapshot came for these in time, run them from what is here.
+      for (String groupId : heldByGroupId.keySet()) {
+        if (!awaitingSnapshot(groupId)) {
+          runHeld(groupId);
+        }
+      }
+    } catch (RuntimeException e) {
+      Log.log(Level.WARNING, this, "Room node heartbeat failed", e);
+    }
+  }
+
+  private synchronized void updateMembers() {
+    long now = clock.getAsLong();
+    long oldest = now - 3 * heartbeatMillis;
+    Set<String> members = new TreeSet<>();
+    members.add(nodeId);
+    for (Map.Entry<String, Long> e : lastSeenByNodeId.entrySet()) {
+      if (e.getValue() >= oldest) {
+        members.add(e.getKey());
+      } else {
+        lastSeenByNodeId.remove(e.getKey(), e.getValue());
+      }
+    }
+    View old = view;
+    View updated = old;
+    if (!members.equals(old.members)) {
+      updated = new View(members);
+      view = updated;
+      // until settled, the view we had is only ourselves, the others ran the groups without us.
+      Set<String> before = new TreeSet<>(settled ? old.members : members);
+      if (!settled) {
+        before.remove(nodeId);
+      }
+      handoverFrom = before.isEmpty() ? null : new HashRing(before);
+      handoverUntil = now + 2 * heartbeatMillis;
+      if (!settled && old.members.size() == 1) {
+        // what ran before we heard from anyone waits for their snapshots like the rest.
+        served.clear();
+      }
+      Log.log(Level.INFO, this, "Room nodes are now {0}", members);
+    }
+    if (!settled) {
+      if (now - startedAt < 2 * heartbeatMillis) {
+        return;
+      }
+      // whatever ran here while we were finding the others is only ours if it still is.
+      settled = true;
+      served.removeIf(groupId -> !isLocal(groupId));
+      Log.log(Level.INFO, this, "Room nodes settled as {0}", members);
+      return;
+    }
+    if (updated == old) {
+      return;
+    }
+
+    // pass on the state of every group we ran, that now belongs elsewhere.
+    for (String groupId : served) {
+      String newOwner = updated.ownerOf(groupId);
+      if (!nodeId.equals(newOwner)) {
+        Log.log(Level.INFO, this, "Handing group {0} to node {1}", groupId, newOwner);
+        served.remove(groupId);
+        eventBus.publishControl(message("snapshot").add("target", newOwner).add("groupId", groupId)
+            .add(Constants.STATE, holodeck.snapshot(groupId)).build().toString());
+      }
+    }
+  }
+
+  /**
+   * Why a snapshot of the group from the given node must not replace what is
+   * here, or null if it may.
+   */
+  String refuseSnapshot(String groupId, String from) {
+    if (!isLocal(groupId)) {
+      return "it belongs to node " + view.ownerOf(groupId);
+    }
+    if (settled && served.contains(groupId)) {
+      return "it is already running here";
+    }
+    // the sender's view, before this node joined it.
+    Set<String> before = new TreeSet<>(view.members);
+    before.remove(nodeId);
+    before.add(from);
+    if (!from.equals(new HashRing(before).ownerOf(groupId))) {
+      return "node " + from + " was not its owner";
+    }
+    return null;
+  }
+
+  @Override
+  public void onControl(String message) {
+    JsonObject msg = Json.createReader(new StringReader(message)).readObject();
+    String from = msg.getString("node");
+    if (!nodeId.equals(from)) {
+      boolean known = lastSeenByNodeId.put(from, clock.getAsLong()) != null;
+      if (!known) {
+        updateMembers();
+      }
+    }
+    if (!nodeId.equals(msg.getString("target", null))) {
+      return;
+    }
+    String groupId = msg.getString("groupId");
+    String type = msg.getString(Constants.TYPE);
+    if (!"snapshot".equals(type) && isLocal(groupId) && awaitingSnapshot(groupId)) {
+      hold(groupId, msg);
+      return;
+    }
+    run(msg, groupId, type, from);
+  }
+
+  private void hold(String groupId, JsonObject msg) {
+    synchronized (heldByGroupId) {
+      List<JsonObject> held = heldByGroupId.computeIfAbsent(groupId, g -> new ArrayList<>());
+      if (held.size() >= MAX_HELD) {
+        Log.log(Level.WARNING, this, "Dropping {0} for group {1}, still waiting for its snapshot",
+            msg.getString(Constants.TYPE), groupId);
+        return;
+      }
+      held.add(msg);
+    }
+  }
+
+  // what was held for the group, in the order it came.
+  private void runHeld(String groupId) {
+    List<JsonObject> held;
+    synchronized (heldByGroupId) {
+      held = heldByGroupId.remove(groupId);
+    }
+    if (held != null) {
+      for (JsonObject msg : held) {
+        run(msg, groupId, msg.getString(Constants.TYPE), msg.getString("node"));
+      }
+    }
+  }
+
+  private void run(JsonObject msg, String groupId, String type, String from) {
+    switch (type) {
+      case "command":
+      case "join":
+      case "leave":
+        if (!claim(groupId)) {
+          forwardAgain(msg, groupId);
+        } else if ("command".equals(type)) {
+          holodeck.runCommand(msg.getString(Constants.USERID), msg.getString("content"));
+        } else if ("join".equals(type)) {
+          holodeck.runAddUserToRoom(msg.getString(Constants.USERID), msg.getString("username"),
+              msg.getBoolean("resumed"));
+        } else {
+          holodeck.runRemoveUserFromRoom(msg.getString(Constants.USERID));
+        }
+        break;
+      case "event":
+        if (!isLocal(groupId)) {
+          forwardAgain(msg, groupId);
+        } else {
+          holodeck.runEvent(groupId, msg.getString("eventType"), msg.getString("prefix"), msg.getString("json"));
+        }
+        break;
+      case "snapshot":
+        if (holodeck.restore(groupId, from, msg.getJsonObject(Constants.STATE))) {
+          Log.log(Level.INFO, this, "Took over group {0} from node {1}", groupId, from);
+          served.add(groupId);
+          runHeld(groupId);
+        }
+        break;
+      default:
+        Log.log(Level.WARNING, this, "Unknown room control message {0}", msg);
+    }
+  }
+
+  public Collection<String> getMembers() {
+    return view.members;
+  }
+}
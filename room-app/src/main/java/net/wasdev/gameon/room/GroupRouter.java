@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Maps a player id to the group whose holodeck they play in, using rules read
+ * from ROOM_GROUP_RULES. Rules are separated by ';', each one of
+ * <ul>
+ * <li><code>exact:&lt;player id&gt;=&lt;group&gt;</code></li>
+ * <li><code>prefix:&lt;id prefix&gt;=&lt;group&gt;</code></li>
+ * <li><code>regex:&lt;pattern&gt;=&lt;group&gt;</code>, the whole id must match, and
+ * the group may refer to captures as $1 etc.</li>
+ * </ul>
+ * An exact mapping always wins, otherwise the rule with the longest literal
+ * prefix that matches, then the earliest in the list. Players no rule matches
+ * are in the "default" group.
+ * <p>
+ * The rules are compiled once into a trie over their literal prefixes, so
+ * routing an id is a walk of its leading chars, and only the regex rules on
+ * that path are ever tried. A pattern with a top level '|' has no one prefix,
+ * so is tried for every id.
+ */
+public class GroupRouter {
+  public static final String DEFAULT_GROUP = "default";
+  public static final String DEFAULT_RULES = "prefix:facebook:=fbtwitter;prefix:twitter:=fbtwitter;"
+      + "regex:story:colab(|:.*):[^:]*=story:colab$1";
+
+  private final Map<String, String> exact = new HashMap<>();
+  private final Node root = new Node();
+
+  private static class Node {
+    final Map<Character, Node> children = new HashMap<>();
+    final List<Rule> rules = new ArrayList<>();
+  }
+
+  private static class Rule {
+    final Pattern pattern;
+    final String group;
+
+    Rule(Pattern pattern, String group) {
+      this.pattern = pattern;
+      this.group = group;
+    }
+
+    String apply(String playerId) {
+      if (pattern == null) {
+        return group;
+      }
+      Matcher m = pattern.matcher(playerId);
+      if (!m.matches()) {
+        return null;
+      }
+      // the whole id matched, so the replacement is the entire group name.
+      StringBuffer sb = new StringBuffer();
+      m.appendReplacement(sb, group);
+      return sb.toString();
+    }
+  }
+
+  public static GroupRouter fromConfig() {
+    return new GroupRouter(Config.getString(Constants.ENV_GROUP_RULES, DEFAULT_RULES));
+  }
+
+  public GroupRouter(String rules) {
+    for (String rule : rules.split(";")) {
+      rule = rule.trim();
+      if (!rule.isEmpty()) {
+        add(rule);
+      }
+    }
+  }
+
+  private void add(String rule) {
+    int colon = rule.indexOf(':');
+    int equals = rule.lastIndexOf('=');
+    if (colon < 0 || equals < colon) {
+      Log.log(Level.WARNING, this, "Ignoring malformed group rule {0}", rule);
+      return;
+    }
+    String kind = rule.substring(0, colon);
+    String match = rule.substring(colon + 1, equals);
+    String group = rule.substring(equals + 1).trim();
+    switch (kind) {
+      case "exact":
+        exact.putIfAbsent(match, group);
+        break;
+      case "prefix":
+        nodeFor(match).rules.add(new Rule(null, group));
+        break;
+      case "regex":
+        try {
+          nodeFor(literalPrefix(match)).rules.add(new Rule(Pattern.compile(match), group));
+        } catch (PatternSyntaxException e) {
+          Log.log(Level.WARNING, this, "Ignoring group rule {0} with bad pattern: {1}", rule, e.getMessage());
+        }
+        break;
+      default:
+        Log.log(Level.WARNING, this, "Ignoring group rule {0} of unknown kind", rule);
+    }
+  }
+
+  private Node nodeFor(String prefix) {
+    Node node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+    }
+    return node;
+  }
+
+  // the leading chars any match of the pattern must start with.
+  static String literalPrefix(String regex) {
+    if (hasTopLevelAlternation(regex)) {
+      // each branch starts its own way, the rule has to be tried for every id.
+      return "";
+    }
+    int end = 0;
+    while (end < regex.length() && "\\.[]{}()*+?^$|".indexOf(regex.charAt(end)) < 0) {
+      end++;
+    }
+    // a quantifier applies to the char before it, so that char is optional.
+    if (end < regex.length() && end > 0 && "*+?{".indexOf(regex.charAt(end)) >= 0) {
+      end--;
+    }
+    return regex.substring(0, end);
+  }
+
+  // an unescaped '|' outside any group or char class.
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public String route(String playerId) {
+    String group = exact.get(playerId);
+    if (group == null) {
+      group = match(root, playerId, 0);
+    }
+    return group == null ? DEFAULT_GROUP : group;
+  }
+
+  // deepest matching rule first, falling back toward the root.
+  private static String match(Node node, String playerId, int depth) {
+    if (depth < playerId.length()) {
+      Node child = node.children.get(playerId.charAt(depth));
+      if (child != null) {
+        String group = match(child, playerId, depth + 1);
+        if (group != null) {
+          return group;
+        }
+      }
+    }
+    for (Rule rule : node.rules) {
+      String group = rule.apply(playerId);
+      if (group != null) {
+        return group;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring over the room nodes. Each node is placed at several
+ * points, so when a node comes or goes only the groups between its points and
+ * their neighbours change owner.
+ */
+public class HashRing {
+  private static final int POINTS_PER_NODE = 64;
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+
+  public HashRing(Collection<String> nodeIds) {
+    for (String nodeId : nodeIds) {
+      for (int i = 0; i < POINTS_PER_NODE; i++) {
+        ring.put(hash(nodeId + "#" + i), nodeId);
+      }
+    }
+  }
+
+  public String ownerOf(String key) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+    return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+  }
+
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long h = 0;
+      for (int i = 0; i < 8; i++) {
+        h = (h << 8) | (digest[i] & 0xff);
+      }
+      return h;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
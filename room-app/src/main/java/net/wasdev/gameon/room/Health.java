@@ -18,6 +18,7 @@ package net.wasdev.gameon.room;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import javax.json.Json;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -25,9 +26,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet implementation class Health
+ * Liveness, UP for as long as the app can answer at all, see Readiness for
+ * whether it should be sent players.
  */
-@WebServlet("/health")
+@WebServlet({ "/health", "/health/live" })
 public class Health extends HttpServlet {
   private static final long serialVersionUID = 1L;
 
@@ -40,7 +42,7 @@ public class Health extends HttpServlet {
     response.setContentType("application/json");
 
     PrintWriter out = response.getWriter();
-    out.println("{\"status\": \"UP\"}");
+    out.println(Json.createObjectBuilder().add("status", "UP").add("clients", SharedClients.toJson()).build());
   }
 
   /**
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link EventBus} between nodes living in the same JVM, standing in for the
+ * broker. With one node, the default, publishing goes nowhere.
+ */
+public class InMemoryEventBus implements EventBus {
+
+  /**
+   * The shared part, nodes constructed with the same broker see each other's
+   * frames.
+   */
+  public static class Broker {
+    private final Map<String, Listener> listenersByNodeId = new ConcurrentHashMap<>();
+    private final Map<String, ControlListener> controlListenersByNodeId = new ConcurrentHashMap<>();
+  }
+
+  private final Broker broker;
+  private String nodeId;
+  private ControlListener controlListener;
+
+  public InMemoryEventBus() {
+    this(new Broker());
+  }
+
+  public InMemoryEventBus(Broker broker) {
+    this.broker = broker;
+  }
+
+  @Override
+  public void start(String nodeId, Listener listener) {
+    this.nodeId = nodeId;
+    broker.listenersByNodeId.put(nodeId, listener);
+    if (controlListener != null) {
+      broker.controlListenersByNodeId.put(nodeId, controlListener);
+    }
+  }
+
+  @Override
+  public void publish(String groupId, String epoch, long[] bookmarks, List<String> frames) {
+    for (Map.Entry<String, Listener> e : broker.listenersByNodeId.entrySet()) {
+      if (!e.getKey().equals(nodeId)) {
+        e.getValue().onFrames(groupId, epoch, bookmarks, frames);
+      }
+    }
+  }
+
+  @Override
+  public void setControlListener(ControlListener listener) {
+    this.controlListener = listener;
+    if (nodeId != null) {
+      broker.controlListenersByNodeId.put(nodeId, listener);
+    }
+  }
+
+  @Override
+  public void publishControl(String message) {
+    for (ControlListener l : broker.controlListenersByNodeId.values()) {
+      l.onControl(message);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (nodeId != null) {
+      broker.listenersByNodeId.remove(nodeId);
+      broker.controlListenersByNodeId.remove(nodeId);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+/**
+ * {@link EventBus} over a Kafka topic. Records are keyed by group id, so a
+ * group's frames land on one partition and stay in order. Every node reads the
+ * whole topic under its own consumer group, and delivers what it has sessions
+ * for.
+ * <p>
+ * Record values are the publishing node id and the epoch of the bookmarks,
+ * then a line per frame, its bookmark, a space, and the frame, frames are
+ * single line json so this is safe. Control messages go to a second topic,
+ * named after the first with a -control suffix.
+ * <p>
+ * Publishing only queues the record (up to ROOM_EVENT_BUS_QUEUE_SIZE of them),
+ * a thread of its own hands them to the producer, so a slow or unreachable
+ * broker never holds up a websocket thread. When the queue is full, records
+ * are dropped.
+ */
+public class KafkaEventBus implements EventBus, Runnable {
+  private final String kafkaUrl;
+  private final String topic;
+  private final String controlTopic;
+  private final boolean saslSsl;
+  private final BlockingQueue<ProducerRecord<String, String>> outbound = new ArrayBlockingQueue<>(
+      Math.max(1, Config.getInt(Constants.ENV_EVENT_BUS_QUEUE_SIZE, 10000)));
+  private final AtomicLong dropped = new AtomicLong();
+
+  private String nodeId;
+  private Listener listener;
+  private volatile ControlListener controlListener;
+  private KafkaProducer<String, String> producer;
+  private KafkaConsumer<String, String> consumer;
+  private volatile boolean running;
+
+  public KafkaEventBus(String kafkaUrl, String topic, boolean saslSsl) {
+    this.kafkaUrl = kafkaUrl;
+    this.topic = topic;
+    this.controlTopic = topic + "-control";
+    this.saslSsl = saslSsl;
+  }
+
+  private Properties baseProperties() {
+    Properties props = new Properties();
+    props.put("bootstrap.servers", kafkaUrl);
+    if (saslSsl) {
+      // credentials come from the KafkaClient jaas entry in the messageHub server config.
+      props.put("security.protocol", "SASL_SSL");
+      props.put("ssl.protocol", "TLSv1.2");
+      props.put("ssl.enabled.protocols", "TLSv1.2");
+      props.put("ssl.endpoint.identification.algorithm", "HTTPS");
+    }
+    return props;
+  }
+
+  @Override
+  public void start(String nodeId, Listener listener) {
+    this.nodeId = nodeId;
+    this.listener = listener;
+
+    Properties producerProps = baseProperties();
+    producerProps.put("acks", "1");
+    producerProps.put("linger.ms", "1");
+    // how long send() may wait on the broker, on the publishing thread.
+    producerProps.put("max.block.ms", String.valueOf(Config.getLong(Constants.ENV_EVENT_BUS_MAX_BLOCK_MILLIS, 5000)));
+    producer = new KafkaProducer<>(producerProps, new StringSerializer(), new StringSerializer());
+
+    Properties consumerProps = baseProperties();
+    consumerProps.put("group.id", "gameon-room-" + nodeId);
+    consumerProps.put("auto.offset.reset", "latest");
+    consumerProps.put("enable.auto.commit", "true");
+    consumer = new KafkaConsumer<>(consumerProps, new StringDeserializer(), new StringDeserializer());
+    consumer.subscribe(Arrays.asList(topic, controlTopic));
+
+    running = true;
+    try {
+      ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext()
+          .lookup("concurrent/execSvc");
+      executor.submit(this);
+      executor.submit(this::sendQueued);
+    } catch (NamingException e) {
+      throw new IllegalStateException("Unable to obtain executor to consume room events from " + topic, e);
+    }
+    Log.log(Level.INFO, this, "Room event bus started for node {0} on topic {1} at {2}", nodeId, topic, kafkaUrl);
+  }
+
+  @Override
+  public void publish(String groupId, String epoch, long[] bookmarks, List<String> frames) {
+    enqueue(new ProducerRecord<>(topic, groupId, encode(nodeId, epoch, bookmarks, frames)));
+  }
+
+  static String encode(String nodeId, String epoch, long[] bookmarks, List<String> frames) {
+    StringBuilder value = new StringBuilder(nodeId).append(' ').append(epoch);
+    for (int i = 0; i < frames.size(); i++) {
+      value.append('\n').append(bookmarks[i]).append(' ').append(frames.get(i));
+    }
+    return value.toString();
+  }
+
+  @Override
+  public void setControlListener(ControlListener listener) {
+    this.controlListener = listener;
+  }
+
+  @Override
+  public void publishControl(String message) {
+    enqueue(new ProducerRecord<>(controlTopic, nodeId, message));
+  }
+
+  private void enqueue(ProducerRecord<String, String> record) {
+    if (!outbound.offer(record)) {
+      long n = dropped.incrementAndGet();
+      if (n % 1000 == 1) {
+        Log.log(Level.WARNING, this, "Room event bus queue is full, {0} records dropped so far", n);
+      }
+    }
+  }
+
+  // hands queued records to the producer, which may block, off the websocket threads.
+  private void sendQueued() {
+    try {
+      while (running) {
+        ProducerRecord<String, String> record = outbound.poll(1, TimeUnit.SECONDS);
+        if (record == null) {
+          continue;
+        }
+        try {
+          producer.send(record, (metadata, e) -> {
+            if (e != null) {
+              Log.log(Level.WARNING, this, "Unable to publish room event to " + record.topic(), e);
+            }
+          });
+        } catch (KafkaException e) {
+          // eg, the broker was unreachable for max.block.ms.
+          Log.log(Level.WARNING, this, "Unable to publish room event to " + record.topic(), e);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        for (ConsumerRecord<String, String> record : consumer.poll(1000)) {
+          if (controlTopic.equals(record.topic())) {
+            if (controlListener != null) {
+              try {
+                controlListener.onControl(record.value());
+              } catch (RuntimeException e) {
+                Log.log(Level.WARNING, this, "Error handling room control message " + record.value(), e);
+              }
+            }
+            continue;
+          }
+          String[] parts = record.value().split("\n");
+          int space = parts[0].lastIndexOf(' ');
+          if (parts.length < 2 || space < 0 || nodeId.equals(parts[0].substring(0, space))) {
+            continue;
+          }
+          String epoch = parts[0].substring(space + 1);
+          try {
+            long[] bookmarks = new long[parts.length - 1];
+            List<String> frames = new ArrayList<>(parts.length - 1);
+            for (int i = 1; i < parts.length; i++) {
+              int at = parts[i].indexOf(' ');
+              bookmarks[i - 1] = Long.parseLong(parts[i].substring(0, at));
+              frames.add(parts[i].substring(at + 1));
+            }
+            listener.onFrames(record.key(), epoch, bookmarks, frames);
+          } catch (RuntimeException e) {
+            Log.log(Level.WARNING, this, "Error delivering room event for group " + record.key(), e);
+          }
+        }
+      }
+    } catch (WakeupException e) {
+      // close() asked us to stop.
+    } finally {
+      consumer.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    if (consumer != null) {
+      consumer.wakeup();
+    }
+    if (producer != null) {
+      producer.close();
+    }
+  }
+}
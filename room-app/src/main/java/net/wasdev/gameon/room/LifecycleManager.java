@@ -19,6 +19,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -28,11 +29,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
@@ -41,26 +45,20 @@ import javax.json.JsonObjectBuilder;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.websocket.Endpoint;
+import javax.websocket.Extension;
 import javax.websocket.HandshakeResponse;
 import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerApplicationConfig;
 import javax.websocket.server.ServerEndpointConfig;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-import org.apache.kafka.common.utils.CopyOnWriteMap;
 import org.gameontext.signed.SignedRequestHmac;
 import org.gameontext.signed.SignedRequestMap;
 import org.ozzy.model.Item;
 import org.ozzy.model.Room;
 import org.ozzy.model.Story;
 import org.ozzy.runtime.RoomEngine;
+import org.ozzy.runtime.RoomEvents;
 import org.ozzy.runtime.RoomResponseProcessor;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
@@ -73,31 +71,330 @@ public class LifecycleManager implements ServerApplicationConfig {
   private final Map<String, Collection<Session>> sessionMap = new ConcurrentHashMap<String, Collection<Session>>();
   private String registrationSecret;
   private String systemId;
+  private final String nodeId = Config.getString(Constants.ENV_NODE_ID,
+      Config.getString("HOSTNAME", UUID.randomUUID().toString()));
+  // null when this node works alone.
+  private volatile EventBus eventBus;
+  private volatile GroupOwnership ownership;
 
   public static class SessionRoomResponseProcessor implements RoomResponseProcessor {
     private Collection<Session> activeSessions = new CopyOnWriteArraySet<Session>();
-    private AtomicInteger counter = new AtomicInteger(0);
     private Map<String, Collection<Session>> sessionMap;
+    // frames held back by groupId while this thread is inside beginBatch/endBatch.
+    private final ThreadLocal<Map<String, Batch>> batches = ThreadLocal.withInitial(HashMap::new);
+    private final Map<String, GroupStream> streamsByGroupId = new ConcurrentHashMap<>();
+    private final int replayFrames = Config.getInt(Constants.ENV_REPLAY_BUFFER_FRAMES, 256);
+    private final long replayMaxBytes = Config.getLong(Constants.ENV_REPLAY_BUFFER_MAX_BYTES, 1024 * 1024);
+    private static final int GROUP_COMMAND_BURST = Config.getInt(Constants.ENV_GROUP_COMMAND_BURST, 50);
+    private static final int GROUP_COMMANDS_PER_SECOND = Config.getInt(Constants.ENV_GROUP_COMMANDS_PER_SECOND, 25);
+    private final GroupRouter router = GroupRouter.fromConfig();
+    // every player with a session here, filled as sessions are linked, so sending
+    // an event doesn't re-run the routing rules.
+    private final Map<String, PlayerContext> contextsByPlayerId = new ConcurrentHashMap<>();
+
+    // each group numbers its own events, so a group's bookmarks are contiguous, and
+    // busy groups don't contend with each other for the next one. With more than one
+    // node, only the group's owner numbers them, the others buffer what it sends.
+    // A bookmark is "epoch:n", the epoch naming the run of the group's state the
+    // numbers belong to. It changes whenever the group starts again from scratch
+    // (a restart, or an owner taking over with no snapshot), and a bookmark from
+    // another epoch is never replayed.
+    static class GroupStream {
+      final String groupId;
+      final Collection<Session> sessions;
+      final ReplayBuffer replay;
+      final TokenBucket commands = new TokenBucket(GROUP_COMMAND_BURST, GROUP_COMMANDS_PER_SECOND);
+      // guarded by this, along with adding to the replay buffer.
+      private String epoch = newEpoch();
+      private long lastBookmark = 0;
+
+      GroupStream(String groupId, Collection<Session> sessions, ReplayBuffer replay) {
+        this.groupId = groupId;
+        this.sessions = sessions;
+        this.replay = replay;
+      }
+
+      /**
+       * Give the event the group's next bookmark, as the last field of its json,
+       * and buffer it. Both happen under one lock, so concurrent senders can't
+       * buffer frames out of bookmark order.
+       *
+       * @param prefix what goes before the json, eg "player,*,"
+       * @param json the event, without its bookmark
+       * @param frames where the frame to send is added
+       * @return the frame's bookmark
+       */
+      synchronized long append(String prefix, String json, List<String> frames) {
+        long bookmark = ++lastBookmark;
+        StringBuilder frame = new StringBuilder(prefix.length() + json.length() + 32);
+        frame.append(prefix).append(json, 0, json.length() - 1);
+        frame.append(",\"bookmark\":\"").append(epoch).append(':').append(bookmark).append("\"}");
+        String msg = frame.toString();
+        replay.add(bookmark, msg);
+        frames.add(msg);
+        return bookmark;
+      }
+
+      // frames the owner sent from another node, kept under the bookmarks it gave them.
+      synchronized void received(String epoch, long[] bookmarks, List<String> frames) {
+        startEpoch(epoch, 0);
+        for (int i = 0; i < frames.size(); i++) {
+          replay.add(bookmarks[i], frames.get(i));
+          lastBookmark = Math.max(lastBookmark, bookmarks[i]);
+        }
+      }
+
+      synchronized String epoch() {
+        return epoch;
+      }
+
+      synchronized long lastBookmark() {
+        return lastBookmark;
+      }
+
+      // on taking the group over, carry on from where the last owner got to.
+      synchronized void continueFrom(String epoch, long bookmark) {
+        startEpoch(epoch, bookmark);
+        lastBookmark = Math.max(lastBookmark, bookmark);
+      }
+
+      // on taking the group over without its state, nothing sent before still holds.
+      synchronized void restart() {
+        startEpoch(newEpoch(), 0);
+      }
+
+      private void startEpoch(String epoch, long bookmark) {
+        if (!this.epoch.equals(epoch)) {
+          this.epoch = epoch;
+          lastBookmark = bookmark;
+          replay.clear();
+        }
+      }
+
+      /**
+       * @return the frames sent since the bookmark, or null if it is from another
+       *         epoch, malformed, or the frames are no longer held
+       */
+      synchronized List<String> framesAfter(String bookmark) {
+        int colon = bookmark.lastIndexOf(':');
+        if (colon < 0 || !epoch.equals(bookmark.substring(0, colon))) {
+          return null;
+        }
+        try {
+          return replay.framesAfter(Long.parseLong(bookmark.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+
+      private static String newEpoch() {
+        return Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+      }
+    }
+
+    private GroupStream streamFor(String groupId) {
+      GroupStream stream = streamsByGroupId.get(groupId);
+      if (stream == null) {
+        stream = streamsByGroupId.computeIfAbsent(groupId, g -> new GroupStream(g,
+            sessionMap.computeIfAbsent(g, k -> new CopyOnWriteArraySet<Session>()),
+            new ReplayBuffer(replayFrames, replayMaxBytes)));
+      }
+      return stream;
+    }
+
+    /**
+     * The context of a player with a session here, or, for anyone else (eg, a
+     * player whose command was forwarded from another node), one routed now.
+     */
+    public PlayerContext contextFor(String playerId) {
+      PlayerContext ctx = contextsByPlayerId.get(playerId);
+      if (ctx == null) {
+        String groupId = router.route(playerId);
+        ctx = new PlayerContext(playerId, groupId, streamFor(groupId));
+      }
+      return ctx;
+    }
+
+    public PlayerContext contextFor(Session s, String playerId) {
+      PlayerContext ctx = (PlayerContext) s.getUserProperties().get(Constants.SESSION_PLAYER);
+      return ctx != null && ctx.playerId.equals(playerId) ? ctx : contextFor(playerId);
+    }
+
+    private static class Batch {
+      final List<String> frames = new ArrayList<>();
+      long[] bookmarks = new long[8];
+      int depth = 0;
+
+      void added(long bookmark) {
+        if (frames.size() > bookmarks.length) {
+          bookmarks = Arrays.copyOf(bookmarks, bookmarks.length * 2);
+        }
+        bookmarks[frames.size() - 1] = bookmark;
+      }
+    }
+
+    private EventBus eventBus = new InMemoryEventBus();
+    // null when this node runs alone, and so owns every group.
+    private volatile GroupOwnership ownership;
 
     public SessionRoomResponseProcessor(Map<String, Collection<Session>> sessionMap) {
       this.sessionMap = sessionMap;
     }
 
-    private void generateEvent(Session session, JsonObject content, String userID, boolean selfOnly, int bookmark)
-        throws IOException {
-      JsonObjectBuilder response = Json.createObjectBuilder();
-      response.add("type", "event");
-      response.add("content", content);
-      response.add("bookmark", bookmark);
+    /**
+     * Share what this node sends to a group with the other room nodes, and deliver
+     * what they send to the sessions connected here.
+     */
+    public void setEventBus(EventBus eventBus, String nodeId) {
+      this.eventBus = eventBus;
+      eventBus.start(nodeId, (groupId, epoch, bookmarks, frames) -> {
+        // buffered even with no one here playing in the group, they may reconnect here.
+        GroupStream stream = streamFor(groupId);
+        stream.received(epoch, bookmarks, frames);
+        if (!stream.sessions.isEmpty()) {
+          deliver(stream, "remote", frames);
+        }
+      });
+    }
+
+    public void setGroupOwnership(GroupOwnership ownership) {
+      this.ownership = ownership;
+    }
+
+    String bookmarkEpoch(String groupId) {
+      return streamFor(groupId).epoch();
+    }
+
+    long lastBookmark(String groupId) {
+      return streamFor(groupId).lastBookmark();
+    }
+
+    void continueBookmarks(String groupId, String epoch, long bookmark) {
+      streamFor(groupId).continueFrom(epoch, bookmark);
+    }
+
+    void restartBookmarks(String groupId) {
+      streamFor(groupId).restart();
+    }
+
+    /**
+     * Hold back everything this thread sends to the group until the matching
+     * {@link #endBatch(String)}, so the group gets it in a single pass per session.
+     * Batches nest, only the outermost end delivers.
+     */
+    public void beginBatch(String groupId) {
+      Map<String, Batch> batchesForThread = batches.get();
+      Batch batch = batchesForThread.get(groupId);
+      if (batch == null) {
+        batch = new Batch();
+        batchesForThread.put(groupId, batch);
+      }
+      batch.depth++;
+    }
+
+    public void endBatch(String groupId) {
+      Map<String, Batch> batchesForThread = batches.get();
+      Batch batch = batchesForThread.get(groupId);
+      if (batch != null && --batch.depth == 0) {
+        batchesForThread.remove(groupId);
+        if (!batch.frames.isEmpty()) {
+          GroupStream stream = streamFor(groupId);
+          deliver(stream, "batch", batch.frames);
+          eventBus.publish(groupId, stream.epoch(), Arrays.copyOf(batch.bookmarks, batch.frames.size()), batch.frames);
+        }
+      }
+    }
 
-      String msg = "player," + (selfOnly ? userID : "*") + "," + response.build().toString();
-      Log.log(Level.FINE, this, "ROOM(PE): sending to session {0} messsage {1}", session.getId(), msg);
-      synchronized(session) {
-        if(session.isOpen())
-          session.getBasicRemote().sendText(msg);
-        else
-          System.out.println("CLOSED SESSION DETECTED DURING PE SEND!"); 
+    private void sendToGroup(GroupStream stream, String eventType, String prefix, String json) {
+      GroupOwnership o = ownership;
+      if (o != null && !o.isLocal(stream.groupId)) {
+        // the owner numbers the event, and sends it back to us over the bus.
+        o.forwardEvent(stream.groupId, eventType, prefix, json);
+        return;
       }
+      sendOwnedEvent(stream, eventType, prefix, json);
+    }
+
+    /**
+     * Number and send an event for a group this node owns, eg, one forwarded by
+     * the node it was raised on.
+     */
+    void sendOwnedEvent(String groupId, String eventType, String prefix, String json) {
+      sendOwnedEvent(streamFor(groupId), eventType, prefix, json);
+    }
+
+    private void sendOwnedEvent(GroupStream stream, String eventType, String prefix, String json) {
+      Batch batch = batches.get().get(stream.groupId);
+      if (batch != null) {
+        batch.added(stream.append(prefix, json, batch.frames));
+      } else {
+        List<String> frames = new ArrayList<>(1);
+        long bookmark = stream.append(prefix, json, frames);
+        deliver(stream, eventType, frames);
+        eventBus.publish(stream.groupId, stream.epoch(), new long[] { bookmark }, frames);
+      }
+    }
+
+    private void deliver(GroupStream stream, String eventType, List<String> frames) {
+      Collection<Session> sessionsForGroup = stream.sessions;
+      int length = 0;
+      for (String msg : frames) {
+        length += msg.length();
+      }
+      Object event = RoomEvents.beginBroadcast();
+      // sized once per broadcast, then counted for each session it goes to.
+      long raw = -1;
+      long rawTotal = 0;
+      long deflatingTotal = 0;
+      try {
+        for (Session session : sessionsForGroup) {
+          if(!session.isOpen()) {
+            System.out.println("CLOSED SESSION DETECTED DURING " + eventType + " SEND!");
+            continue;
+          }
+          for (String msg : frames) {
+            Log.log(Level.FINE, this, "ROOM({0}): sending to session {1} messsage {2}", eventType, session.getId(), msg);
+          }
+          // queued, a slow or broken session only ever affects itself.
+          SessionSender sender = SessionSender.of(session);
+          sender.send(frames);
+
+          if (raw < 0) {
+            raw = 0;
+            for (String msg : frames) {
+              raw += OutputStats.utf8Length(msg);
+            }
+          }
+          rawTotal += raw;
+          if (sender.isDeflating()) {
+            deflatingTotal += raw;
+          }
+        }
+      } finally {
+        OutputStats.record(stream.groupId, frames.size(), rawTotal, deflatingTotal);
+        RoomEvents.commitBroadcast(event, stream.groupId, eventType, sessionsForGroup.size(), length);
+      }
+    }
+
+    /**
+     * Catch a reconnecting session up with everything sent to its group since
+     * the bookmark it last saw.
+     *
+     * @return false if the frames are no longer held, and the player needs a full
+     *         refresh instead
+     */
+    public boolean replay(Session session, PlayerContext player, String bookmark) {
+      List<String> frames = player.stream.framesAfter(bookmark.trim());
+      if (frames == null) {
+        Log.log(Level.FINE, this, "Unusable bookmark {0} from {1}", bookmark, player.playerId);
+        return false;
+      }
+      Log.log(Level.FINE, this, "Replaying {0} frames after bookmark {1} to session {2}", frames.size(), bookmark,
+          session.getId());
+      if(session.isOpen()) {
+        SessionSender.of(session).send(frames);
+      }
+      return true;
     }
 
     @Override
@@ -114,35 +411,13 @@ public class LifecycleManager implements ServerApplicationConfig {
       if (selfMessage != null && selfMessage.length() > 0) {
         content.add(senderId, selfMessage);
       }
-      JsonObject json = content.build();
-      int count = counter.incrementAndGet();
-
-      String groupId = getGroupForPlayerId(senderId);
-      Collection<Session> sessionsForGroup = sessionMap.get(groupId);
-      
-      System.out.println("DEBUG: SEND PE{"+senderId+":"+groupId+"} to "+sessionsForGroup.size()+" sessions.\n   U: "+selfMessage+"\n   R: "+othersMessage);
-      for (Session s : sessionsForGroup) {
-        try {
-          generateEvent(s, json, senderId, selfOnly, count);
-        } catch (IOException io) {
-          throw new RuntimeException(io);
-        }
-      }
-    }
-
-    private void generateRoomEvent(Session session, JsonObject content, int bookmark) throws IOException {
+      GroupStream stream = contextFor(senderId).stream;
       JsonObjectBuilder response = Json.createObjectBuilder();
       response.add("type", "event");
-      response.add("content", content);
-      response.add("bookmark", bookmark);
-
-      String msg = "player,*," + response.build().toString();
+      response.add("content", content.build());
 
-      Log.log(Level.FINE, this, "ROOM(RE): sending to session {0} messsage {1}", session.getId(), msg);
-      synchronized(session) {
-        if(session.isOpen())
-          session.getBasicRemote().sendText(msg);
-      }
+      System.out.println("DEBUG: SEND PE{"+senderId+":"+stream.groupId+"}\n   U: "+selfMessage+"\n   R: "+othersMessage);
+      sendToGroup(stream, "player", "player," + (selfOnly ? senderId : "*") + ",", response.build().toString());
     }
 
     @Override
@@ -150,46 +425,32 @@ public class LifecycleManager implements ServerApplicationConfig {
       // System.out.println("Message sent to everyone :: "+s);
       JsonObjectBuilder content = Json.createObjectBuilder();
       content.add("*", s);
-      JsonObject json = content.build();
-      int count = counter.incrementAndGet();
+      GroupStream stream = contextFor(senderId).stream;
+      JsonObjectBuilder response = Json.createObjectBuilder();
+      response.add("type", "event");
+      response.add("content", content.build());
 
-      String groupId = getGroupForPlayerId(senderId);
-      Collection<Session> sessionsForGroup = sessionMap.get(groupId);
-      for (Session session : sessionsForGroup) {
-        try {
-          generateRoomEvent(session, json, count);
-        } catch (IOException io) {
-          throw new IllegalStateException(io);
-        }
-      }
+      sendToGroup(stream, "room", "player,*,", response.build().toString());
     }
 
     public void chatEvent(String senderId, String username, String tmsg) {
+      chatEvent(contextFor(senderId), username, tmsg);
+    }
+
+    public void chatEvent(PlayerContext sender, String username, String tmsg) {
       JsonObjectBuilder content = Json.createObjectBuilder();
       content.add("type", "chat");
       content.add("username", username);
       content.add("content", tmsg);
-      content.add("bookmark", counter.incrementAndGet());
-      JsonObject json = content.build();
-      String msg = "player,*," + json.toString();
-      
-      String groupId = getGroupForPlayerId(senderId);
-      Collection<Session> sessionsForGroup = sessionMap.get(groupId);
-      for (Session session : sessionsForGroup) {
-        try {
-          Log.log(Level.FINE, this, "ROOM(CE): sending to session {0} messsage {1}", session.getId(), msg);
-          synchronized(session) {
-            if(session.isOpen())
-              session.getBasicRemote().sendText(msg);
-          }
-        } catch (IOException io) {
-          throw new IllegalStateException(io);
-        }
-      }
+
+      sendToGroup(sender.stream, "chat", "player,*,", content.build().toString());
     }
 
-    @Override
-    public void locationEvent(String senderId, String roomId, String roomName, String roomDescription,
+    /**
+     * Build the content of a location event, everything but the bookmark, so it
+     * can be sent to many players without being rebuilt for each.
+     */
+    public static JsonObject buildLocation(String roomId, String roomName, String roomDescription,
         Map<String, String> exits, List<String> objects, List<String> inventory, Map<String, String> commands) {
       JsonObjectBuilder content = Json.createObjectBuilder();
       content.add("type", "location");
@@ -222,28 +483,26 @@ public class LifecycleManager implements ServerApplicationConfig {
         objs.add(o);
       }
       content.add("objects", objs.build());
-      content.add("bookmark", counter.incrementAndGet());
+      return content.build();
+    }
 
-      JsonObject json = content.build();
-      String msg = "player," + senderId + "," + json.toString();
-      
-      String groupId = getGroupForPlayerId(senderId);
-      Collection<Session> sessionsForGroup = sessionMap.get(groupId);
-      
-      System.out.println("DEBUG: SEND LE{"+senderId+":"+groupId+"} to "+sessionsForGroup.size()+" sessions.\n Room:"+roomId+" Name:"+roomName);
-      for (Session session : sessionsForGroup) {
-        try {
-          Log.log(Level.FINE, this, "ROOM(LE): sending to session {0} messsage {1}", session.getId(), msg);
-          synchronized(session) {
-            if(session.isOpen())
-              session.getBasicRemote().sendText(msg);
-            else
-              System.out.println("CLOSED SESSION DETECTED DURING LE SEND!");
-          }
-        } catch (IOException io) {
-          throw new RuntimeException(io);
-        }
-      }
+    @Override
+    public void locationEvent(String senderId, String roomId, String roomName, String roomDescription,
+        Map<String, String> exits, List<String> objects, List<String> inventory, Map<String, String> commands) {
+      locationEvent(senderId,
+          buildLocation(roomId, roomName, roomDescription, exits, objects, inventory, commands).toString());
+    }
+
+    /**
+     * Send a location event from already serialized content, as built by
+     * {@link #buildLocation}.
+     */
+    public void locationEvent(String senderId, String locationJson) {
+      GroupStream stream = contextFor(senderId).stream;
+
+      System.out.println("DEBUG: SEND LE{"+senderId+":"+stream.groupId+"}");
+      // the bookmark goes last inside the content, spliced in rather than copying the object.
+      sendToGroup(stream, "location", "player," + senderId + ",", locationJson);
     }
 
     @Override
@@ -252,47 +511,71 @@ public class LifecycleManager implements ServerApplicationConfig {
       content.add("type", "exit");
       content.add("exitId", exitID);
       content.add("content", message);
-      content.add("bookmark", counter.incrementAndGet());
-      JsonObject json = content.build();
-      String msg = "playerLocation," + senderId + "," + json.toString();
-      
-      String groupId = getGroupForPlayerId(senderId);
-      Collection<Session> sessionsForGroup = sessionMap.get(groupId);
-      for (Session session : sessionsForGroup) {
-        try {
-          
-          Log.log(Level.FINE, this, "ROOM(EE): sending to session {0} messsage {1}", session.getId(), msg);
-          synchronized(session) {
-            if(session.isOpen())
-              session.getBasicRemote().sendText(msg);
-          }
-        } catch (IOException io) {
-          throw new RuntimeException(io);
-        }
+      GroupStream stream = contextFor(senderId).stream;
+
+      sendToGroup(stream, "exit", "playerLocation," + senderId + ",", content.build().toString());
+    }
+
+    /**
+     * Take a token from the player's and their group's command buckets.
+     *
+     * @return false if either is empty, and the command should be refused
+     */
+    public boolean allowCommand(PlayerContext player) {
+      if (player.commands.tryTake() && player.stream.commands.tryTake()) {
+        return true;
       }
+      OutputStats.recordThrottled(player.groupId);
+      return false;
     }
 
-    public String getGroupForPlayerId(String playerId) {
-      // map userid to group..
-      String groupId = "default";
-      if (playerId.startsWith("facebook:") || playerId.startsWith("twitter:")) {
-        groupId = "fbtwitter";
-      } else if (playerId.startsWith("story:colab:")) {
-        groupId = playerId.substring(0, playerId.lastIndexOf(':'));
+    /**
+     * Tell just this session its command was refused. Not a group event, so it
+     * takes no bookmark, and it costs nothing to send again.
+     */
+    public void commandThrottled(Session session, PlayerContext player) {
+      String frame = player.throttledFrame;
+      if (frame == null) {
+        JsonObjectBuilder content = Json.createObjectBuilder();
+        content.add(player.playerId, "Whoa there, slow down a little! That command was ignored.");
+        JsonObjectBuilder response = Json.createObjectBuilder();
+        response.add("type", "event");
+        response.add("content", content.build());
+        frame = "player," + player.playerId + "," + response.build().toString();
+        player.throttledFrame = frame;
       }
-      return groupId;
+      SessionSender.of(session).send(Collections.singletonList(frame));
+    }
+
+    public String getGroupForPlayerId(String playerId) {
+      PlayerContext ctx = contextsByPlayerId.get(playerId);
+      // players without a session here (eg, forwarded from another node) are routed each time.
+      return ctx != null ? ctx.groupId : router.route(playerId);
     }
 
     public void addSession(Session s) {
+      SessionSender.of(s);
       activeSessions.add(s);
     }
 
-    public void linkSessionWithPlayer(Session s, String playerId) {
-      String groupId = getGroupForPlayerId(playerId);
-      sessionMap.putIfAbsent(groupId, new CopyOnWriteArraySet<Session>());
-      Collection<Session> sessions = sessionMap.get(groupId);
-      sessions.add(s);
-      System.out.println("Associated id "+playerId+" with session "+s.getId()+" to groupId "+groupId);
+    /**
+     * @return the player's context, which the session keeps for the rest of its life
+     */
+    public PlayerContext linkSessionWithPlayer(Session s, String playerId) {
+      // compute runs atomically for the key, so the session count needs no further locking.
+      PlayerContext ctx = contextsByPlayerId.compute(playerId, (id, existing) -> {
+        if (existing == null) {
+          String groupId = router.route(id);
+          existing = new PlayerContext(id, groupId, streamFor(groupId));
+        }
+        existing.sessions++;
+        return existing;
+      });
+      s.getUserProperties().put(Constants.SESSION_PLAYER, ctx);
+      ctx.stream.sessions.add(s);
+      LoadReport.sessionLinked(ctx.groupId);
+      System.out.println("Associated id "+playerId+" with session "+s.getId()+" to groupId "+ctx.groupId);
+      return ctx;
     }
 
     public void removeSession(Session s) {
@@ -300,10 +583,12 @@ public class LifecycleManager implements ServerApplicationConfig {
     }
 
     public void unlinkSessionFromPlayer(Session s, String playerId) {
-      String groupId = getGroupForPlayerId(playerId);
-      Collection<Session> sessions = sessionMap.get(groupId);
-      sessions.remove(s);
-      System.out.println("Unassociated id "+playerId+" with session "+s.getId()+" to groupId "+groupId);
+      PlayerContext ctx = contextFor(s, playerId);
+      ctx.stream.sessions.remove(s);
+      LoadReport.sessionUnlinked(ctx.groupId);
+      // keep the player's context while any of their other sessions remain.
+      contextsByPlayerId.computeIfPresent(playerId, (id, existing) -> --existing.sessions <= 0 ? null : existing);
+      System.out.println("Unassociated id "+playerId+" with session "+s.getId()+" to groupId "+ctx.groupId);
     }
 
     public Collection<Session> getSessions() {
@@ -384,6 +669,21 @@ public class LifecycleManager implements ServerApplicationConfig {
     }
   }
 
+  static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+  // offered to mediators when ROOM_WS_DEFLATE=true, the container does the work if it supports it.
+  private static class DeflateExtension implements Extension {
+    @Override
+    public String getName() {
+      return PERMESSAGE_DEFLATE;
+    }
+
+    @Override
+    public List<Parameter> getParameters() {
+      return Collections.emptyList();
+    }
+  }
+
   private Set<ServerEndpointConfig> registerRooms(Holodeck holodeck) {
 
     sessionMap.putIfAbsent("default", new CopyOnWriteArraySet<>());
@@ -394,39 +694,72 @@ public class LifecycleManager implements ServerApplicationConfig {
     RegistrationRoom room = new RegistrationRoom(Constants.ROOM_ID, "The Colab Adventure Room"); // TODO: externalise
                                                                                                  // config.
     RoomRegistrationHandler roomRegistration = new RoomRegistrationHandler(room, systemId, registrationSecret);
-    try {
-      roomRegistration.performRegistration();
-    } catch (Exception e) {
-      Log.log(Level.SEVERE, this, "Room Registration FAILED", e);
-      // we keep running, maybe we were registered ok before...
-    }
+    // registration carries on in the background, retrying until map has us, we may well be registered from before.
+    roomRegistration.start();
 
     // now regardless of our registration, open our websocket.
     SessionRoomResponseProcessor srrp = new SessionRoomResponseProcessor(sessionMap);
+    EventBus eventBus = buildEventBus();
+    if (eventBus != null) {
+      srrp.setEventBus(eventBus, nodeId);
+      GroupOwnership ownership = new GroupOwnership(nodeId, eventBus, holodeck);
+      holodeck.setGroupOwnership(ownership);
+      srrp.setGroupOwnership(ownership);
+      ownership.start();
+      this.eventBus = eventBus;
+      this.ownership = ownership;
+    }
     ServerEndpointConfig.Configurator config = new RoomWSConfig(holodeck, srrp, roomRegistration.getToken());
 
-    endpoints
-        .add(ServerEndpointConfig.Builder.create(RoomWS.class, "/ws/" + room.getId()).configurator(config).build());
+    List<Extension> extensions = new ArrayList<>();
+    if (Boolean.parseBoolean(Config.getString(Constants.ENV_WS_DEFLATE, "false"))) {
+      extensions.add(new DeflateExtension());
+    }
+
+    endpoints.add(ServerEndpointConfig.Builder.create(RoomWS.class, "/ws/" + room.getId()).configurator(config)
+        .extensions(extensions).build());
 
     return endpoints;
   }
 
-  private InputStream readFromHttp(String url) throws ClientProtocolException, IOException {
-    CloseableHttpClient httpclient = HttpClients.createDefault();
-    HttpGet httpget = new HttpGet(url);
-    CloseableHttpResponse response = httpclient.execute(httpget);
-    byte[] data = null;
+  /**
+   * On app stop or reload, stop the heartbeats and let go of the event bus, its
+   * threads and its kafka clients.
+   */
+  @PreDestroy
+  public void shutdown() {
+    GroupOwnership o = ownership;
+    if (o != null) {
+      o.stop();
+    }
+    EventBus bus = eventBus;
+    if (bus != null) {
+      Log.log(Level.INFO, this, "Closing room event bus for node {0}", nodeId);
+      bus.close();
+    }
+  }
+
+  /**
+   * With ROOM_EVENT_BUS=kafka, room nodes share group traffic over kafka, so
+   * players of a group can be spread across nodes. Otherwise this node works
+   * alone.
+   */
+  private EventBus buildEventBus() {
+    if (!"kafka".equalsIgnoreCase(Config.getString(Constants.ENV_EVENT_BUS, "local"))) {
+      return null;
+    }
+    String kafkaUrl = null;
+    String targetPlatform = null;
     try {
-      HttpEntity entity = response.getEntity();
-      if (entity != null) {
-        data = EntityUtils.toByteArray(entity);
-      } else {
-        throw new IOException("Unable to load yaml");
-      }
-    } finally {
-      response.close();
+      kafkaUrl = (String) new InitialContext().lookup(Constants.JNDI_KAFKA_URL);
+      targetPlatform = (String) new InitialContext().lookup(Constants.JNDI_TARGET_PLATFORM);
+    } catch (NamingException e) {
     }
-    return new ByteArrayInputStream(data);
+    if (kafkaUrl == null || kafkaUrl.isEmpty()) {
+      throw new IllegalStateException("kafkaUrl was not found, check server.xml/server.env");
+    }
+    String topic = Config.getString(Constants.ENV_EVENT_TOPIC, "gameon-room-events");
+    return new KafkaEventBus(kafkaUrl, topic, "bluemix".equals(targetPlatform));
   }
 
   private Story parseYaml(InputStream inputStream) {
@@ -440,20 +773,28 @@ public class LifecycleManager implements ServerApplicationConfig {
     Map<String, Map<String, RoomEngine>> holodeckProgramsByGroupId;
     SessionRoomResponseProcessor srrp;
     String startId;
-    Map<String, RoomEngine> activeRoomEngineByGroupId;
+    // one reference per group, that players' contexts hold on to across room switches.
+    Map<String, AtomicReference<RoomEngine>> activeRoomEngineByGroupId;
     Map<String, Collection<String>> useridsByGroupId;
-    Map<String, AtomicInteger> userIdToCount;
-    Map<String, String> userIdToNameMap;
-    
+    Map<String, Player> playersByUserId;
+    // null when this node runs alone, and so owns every group.
+    private volatile GroupOwnership ownership;
+
+    // a player can be connected via more than one session, they stay known
+    // until the last of them leaves.
+    private static class Player {
+      volatile String name;
+      int sessions;
+    }
+
     public Holodeck(Map<String, Map<String, RoomEngine>> holodeckPrograms, String startId ) {
       this.holodeckProgramsByGroupId = holodeckPrograms;
       this.startId = startId;
-      this.userIdToCount = new CopyOnWriteMap<>();
-      this.userIdToNameMap = new CopyOnWriteMap<>();
-      
+      this.playersByUserId = new ConcurrentHashMap<>();
+
       activeRoomEngineByGroupId = new ConcurrentHashMap<>();
       for(String key : holodeckProgramsByGroupId.keySet()) {
-        activeRoomEngineByGroupId.put(key, holodeckPrograms.get(key).get(startId));
+        activeRoomEngineByGroupId.put(key, new AtomicReference<>(holodeckPrograms.get(key).get(startId)));
       }
       
       useridsByGroupId = new ConcurrentHashMap<String, Collection<String>>();
@@ -469,47 +810,50 @@ public class LifecycleManager implements ServerApplicationConfig {
       }
     }
     
-    private void sendNewRoomText(String userid, RoomEngine re) {
-      Map<String,String> exits = new HashMap<>();
-      exits.put("N","No sign of an exit here...");
-      exits.put("S","Nothing over here either...");
-      exits.put("E","Still no sign of an exit...");
-      exits.put("W","Yet another direction with no exit..");
-
-      if(re.room.getExits()!=null) {
-        exits.putAll(re.room.getExits());
-      }
-      
-      List<String> items = new ArrayList<>();
-      List<String> inventory = new ArrayList<>();
-      Map<String,String> commands = new TreeMap<>(); //re.getCommandMap();
-      if(re.getCommandMap()!=null) {
-        for(Entry<String, String> c : re.getCommandMap().entrySet()) {
-          commands.put("/"+c.getKey(), c.getValue());
-        }
-      }
+    public void setGroupOwnership(GroupOwnership ownership) {
+      this.ownership = ownership;
+    }
 
-      srrp.locationEvent(userid, re.getId(), re.getName(), "", exits, items, inventory, commands);
+    // true if the group is run here, rather than forwarded to its owner.
+    private boolean runsHere(String groupId) {
+      GroupOwnership o = ownership;
+      return o == null || o.claim(groupId);
     }
-    
+
     public void switchRoom(String userid, String newRoomId) {
       String groupId = srrp.getGroupForPlayerId(userid);
+      Collection<String> userIdsForGroup = useridsByGroupId.get(groupId);
+      Object event = RoomEvents.beginSwitchRoom();
+      try {
+        switchRoom(userid, groupId, newRoomId, userIdsForGroup);
+      } finally {
+        RoomEvents.commitSwitchRoom(event, groupId, newRoomId, userIdsForGroup == null ? 0 : userIdsForGroup.size());
+      }
+    }
+
+    private void switchRoom(String userid, String groupId, String newRoomId, Collection<String> userIdsForGroup) {
       if(holodeckProgramsByGroupId.containsKey(groupId)) {
         Map<String, RoomEngine> holodeckProgramsForGroupId = holodeckProgramsByGroupId.get(groupId);
         if(holodeckProgramsForGroupId.containsKey(newRoomId)) {
           RoomEngine re = holodeckProgramsForGroupId.get(newRoomId);
-          activeRoomEngineByGroupId.put(groupId, re);
+          activeRoomEngineByGroupId.get(groupId).set(re);
           
 
           
-          Collection<String> userIdsForGroup = useridsByGroupId.get(groupId);
           if(userIdsForGroup!=null) {
             System.out.println("DEBUG: processing switch room for "+userid+" in group "+groupId);
-            for(String userInGroup : userIdsForGroup) {
-              //System.out.println("DEBUG: Sending new room text for "+userInGroup+" in group "+groupId);
-              sendNewRoomText(userInGroup, re);
-              //System.out.println("DEBUG: Internally requesting /look for "+userInGroup+" in group "+groupId);
-              command(userInGroup, "look");
+            // same room for everyone, so build the location once, and let the group
+            // receive all the location & look output in one pass per session.
+            String location = re.getLocationJson();
+            srrp.beginBatch(groupId);
+            try {
+              for(String userInGroup : userIdsForGroup) {
+                srrp.locationEvent(userInGroup, location);
+                //System.out.println("DEBUG: Internally requesting /look for "+userInGroup+" in group "+groupId);
+                command(userInGroup, "look");
+              }
+            } finally {
+              srrp.endBatch(groupId);
             }
           }
           
@@ -522,14 +866,50 @@ public class LifecycleManager implements ServerApplicationConfig {
     }
     
     public String userIdToUserName(String userid) {
-      return userIdToNameMap.getOrDefault(userid,"Someone");
+      Player player = playersByUserId.get(userid);
+      return player != null ? player.name : "Someone";
     }
     
+    private RoomEngine activeProgramFor(PlayerContext player) {
+      AtomicReference<RoomEngine> engine = player.engine;
+      if (engine == null) {
+        engine = activeRoomEngineByGroupId.get(player.groupId);
+        player.engine = engine;
+      }
+      return engine.get();
+    }
+
     public void command(String userid, String content) {
-      
-      String groupId = srrp.getGroupForPlayerId(userid);
+      command(srrp.contextFor(userid), content);
+    }
+
+    public void command(PlayerContext player, String content) {
+      if (!runsHere(player.groupId)) {
+        ownership.forwardCommand(player.groupId, player.playerId, content);
+        return;
+      }
+      runCommand(player, content);
+    }
+
+    void runCommand(String userid, String content) {
+      runCommand(srrp.contextFor(userid), content);
+    }
+
+    // runs the command here, the group is owned by this node.
+    private void runCommand(PlayerContext player, String content) {
+      long start = System.nanoTime();
+      try {
+        runCommandTimed(player, content);
+      } finally {
+        LoadReport.commandTook(System.nanoTime() - start);
+      }
+    }
+
+    private void runCommandTimed(PlayerContext player, String content) {
+      String userid = player.playerId;
+      String groupId = player.groupId;
       System.out.println("Command '"+content+"' for user "+userid+" assigned to groupId "+groupId);
-      RoomEngine activeProgram = activeRoomEngineByGroupId.get(groupId);
+      RoomEngine activeProgram = activeProgramFor(player);
       System.out.println("Obtained RoomEngine "+activeProgram.getName()+" for groupId "+groupId);
       
       if("ydebug info".equals(content.toLowerCase())) {
@@ -576,44 +956,165 @@ public class LifecycleManager implements ServerApplicationConfig {
     }
     
     public void addUserToRoom(String userid, String username) {
-      String groupId = srrp.getGroupForPlayerId(userid);
+      addUserToRoom(userid, username, false);
+    }
+
+    /**
+     * @param resumed the player's session has already been caught up from the
+     *          replay buffer, so skip sending the room description & look
+     */
+    public void addUserToRoom(String userid, String username, boolean resumed) {
+      addUserToRoom(srrp.contextFor(userid), username, resumed);
+    }
+
+    public void addUserToRoom(PlayerContext player, String username, boolean resumed) {
+      if (!runsHere(player.groupId)) {
+        ownership.forwardJoin(player.groupId, player.playerId, username, resumed);
+        return;
+      }
+      runAddUserToRoom(player, username, resumed);
+    }
+
+    void runAddUserToRoom(String userid, String username, boolean resumed) {
+      runAddUserToRoom(srrp.contextFor(userid), username, resumed);
+    }
+
+    private void runAddUserToRoom(PlayerContext player, String username, boolean resumed) {
+      String userid = player.playerId;
+      String groupId = player.groupId;
       System.out.println("DEBUG: Adding user to room for  "+userid+" in group "+groupId);
       
-      userIdToNameMap.put(userid,username);
-      AtomicInteger idCount = new AtomicInteger(0);
-      userIdToCount.putIfAbsent(userid,idCount);
-      userIdToCount.get(userid).getAndIncrement();
-      
-      RoomEngine activeProgram = activeRoomEngineByGroupId.get(groupId);
+      // compute runs atomically for the key, so the session count needs no further locking.
+      playersByUserId.compute(userid, (id, known) -> {
+        if (known == null) {
+          known = new Player();
+        }
+        known.name = username;
+        known.sessions++;
+        return known;
+      });
+
+      RoomEngine activeProgram = activeProgramFor(player);
       activeProgram.addUserToRoom(userid, username);
-      
-      useridsByGroupId.putIfAbsent(groupId, new CopyOnWriteArraySet<>());
-      Collection<String> userids = useridsByGroupId.get(groupId);
-      userids.add(userid);
-      
+
+      useridsByGroupId.computeIfAbsent(groupId, g -> ConcurrentHashMap.newKeySet()).add(userid);
+
+      if (resumed) {
+        Log.log(Level.FINE, this, "Resumed {0} in group {1} from replay buffer", userid, groupId);
+        return;
+      }
       System.out.println("DEBUG: Sending new room text as part of room join, to  "+userid+" in group "+groupId);
-      sendNewRoomText(userid, activeProgram);
+      srrp.locationEvent(userid, activeProgram.getLocationJson());
       System.out.println("DEBUG: Sending /look as part of room join, to  "+userid+" in group "+groupId);
-      command(userid, "look");
+      runCommand(player, "look");
     }
 
     public void removeUserFromRoom(String userid) {
       String groupId = srrp.getGroupForPlayerId(userid);
-      RoomEngine activeProgram = activeRoomEngineByGroupId.get(groupId);
+      if (!runsHere(groupId)) {
+        ownership.forwardLeave(groupId, userid);
+        return;
+      }
+      runRemoveUserFromRoom(userid);
+    }
+
+    void runRemoveUserFromRoom(String userid) {
+      String groupId = srrp.getGroupForPlayerId(userid);
+      RoomEngine activeProgram = activeRoomEngineByGroupId.get(groupId).get();
       activeProgram.removeUserFromRoom(userid);
       
+      Player remaining = playersByUserId.computeIfPresent(userid,
+          (id, player) -> --player.sessions <= 0 ? null : player);
+
       Collection<String> userids = useridsByGroupId.get(groupId);
-      if(userids!=null) {
+      if(userids!=null && remaining==null) {
         userids.remove(userid);
       }
-      
-      if(userIdToCount.containsKey(userid)) {
-        int count = userIdToCount.get(userid).getAndDecrement();
-        if(count<=1) {
-          userIdToCount.remove(userid);
-          userIdToNameMap.remove(userid);
+    }
+
+    // the group's state is built afresh here, no bookmark given out before follows on from it.
+    void restartBookmarks(String groupId) {
+      srrp.restartBookmarks(groupId);
+    }
+
+    // an event raised for the group on another node, to be numbered here.
+    void runEvent(String groupId, String eventType, String prefix, String json) {
+      srrp.sendOwnedEvent(groupId, eventType, prefix, json);
+    }
+
+    /**
+     * Everything needed to carry on running a group on another node: which
+     * program is active, the state of each program, who is playing, and the
+     * last bookmark given out.
+     */
+    JsonObject snapshot(String groupId) {
+      JsonObjectBuilder rooms = Json.createObjectBuilder();
+      for (Map.Entry<String, RoomEngine> e : holodeckProgramsByGroupId.get(groupId).entrySet()) {
+        rooms.add(e.getKey(), e.getValue().snapshotState());
+      }
+      JsonObjectBuilder players = Json.createObjectBuilder();
+      Collection<String> userids = useridsByGroupId.get(groupId);
+      if (userids != null) {
+        for (String userid : userids) {
+          Player player = playersByUserId.get(userid);
+          if (player != null) {
+            players.add(userid, Json.createObjectBuilder().add(Constants.USERNAME, player.name)
+                .add("sessions", player.sessions));
+          }
+        }
+      }
+      return Json.createObjectBuilder()
+          .add("activeRoom", activeRoomEngineByGroupId.get(groupId).get().getId())
+          .add("rooms", rooms)
+          .add("players", players)
+          .add(Constants.EPOCH, srrp.bookmarkEpoch(groupId))
+          .add(Constants.BOOKMARK, srrp.lastBookmark(groupId))
+          .build();
+    }
+
+    /**
+     * Carry on running a group from the snapshot its last owner sent.
+     *
+     * @return false if it was refused, eg, the group is already running here
+     */
+    boolean restore(String groupId, String from, JsonObject snapshot) {
+      Map<String, RoomEngine> programs = holodeckProgramsByGroupId.get(groupId);
+      if (programs == null) {
+        Log.log(Level.WARNING, this, "Ignoring snapshot for unknown group {0}", groupId);
+        return false;
+      }
+      String refused = ownership == null ? null : ownership.refuseSnapshot(groupId, from);
+      if (refused != null) {
+        Log.log(Level.WARNING, this, "Refusing snapshot of group {0} from node {1}, {2}", groupId, from, refused);
+        return false;
+      }
+      JsonObject rooms = snapshot.getJsonObject("rooms");
+      for (String roomId : rooms.keySet()) {
+        RoomEngine re = programs.get(roomId);
+        if (re != null) {
+          re.restoreState(rooms.getJsonObject(roomId));
         }
       }
+      if (snapshot.containsKey(Constants.BOOKMARK)) {
+        srrp.continueBookmarks(groupId, snapshot.getString(Constants.EPOCH),
+            snapshot.getJsonNumber(Constants.BOOKMARK).longValue());
+      }
+      RoomEngine active = programs.get(snapshot.getString("activeRoom"));
+      if (active != null) {
+        activeRoomEngineByGroupId.get(groupId).set(active);
+      }
+      JsonObject players = snapshot.getJsonObject("players");
+      Collection<String> userids = useridsByGroupId.computeIfAbsent(groupId, g -> ConcurrentHashMap.newKeySet());
+      for (String userid : players.keySet()) {
+        JsonObject p = players.getJsonObject(userid);
+        Player player = new Player();
+        player.name = p.getString(Constants.USERNAME);
+        player.sessions = p.getInt("sessions");
+        playersByUserId.put(userid, player);
+        userids.add(userid);
+        activeRoomEngineByGroupId.get(groupId).get().addUserToRoom(userid, player.name);
+      }
+      return true;
     }
     
     public void playerEvent(String senderId, String selfMessage, String othersMessage) {
@@ -641,13 +1142,11 @@ public class LifecycleManager implements ServerApplicationConfig {
       
       Map<String, Map<String, RoomEngine>> roomenginesbygroupid = new ConcurrentHashMap<>();
       
+      // fetched (or read from the cache) once, each group gets its own parse.
+      byte[] yaml = StoryCache.load();
       String firstId = null;
       for(String g: Constants.ACTIVE_GROUPS) {
-        //TODO: cache this to databuffer
-        InputStream is = readFromHttp(
-            // "https://raw.githubusercontent.com/BarDweller/gameon-yaml-driven-room/patch-3/roomyaml-all-br");
-            "https://raw.githubusercontent.com/suehle/gameon-yaml-driven-room/main/roomyaml-all-br");        
-        Story s = parseYaml(is);
+        Story s = parseYaml(new ByteArrayInputStream(yaml));
         if(firstId == null) {
           firstId = s.getRooms().get(0).getId();
         }
@@ -674,7 +1173,9 @@ public class LifecycleManager implements ServerApplicationConfig {
       if (registrationSecret == null)
         getConfig();
 
-      return registerRooms(buildHolodeck());
+      Holodeck holodeck = buildHolodeck();
+      LoadReport.setStoryReady(true);
+      return registerRooms(holodeck);
     } catch (IllegalStateException e) {
       Log.log(Level.SEVERE, this, "Error building endpoint configs for room", e);
       // getEndpointConfigs is defined by ServerApplicationConfig, and doesn't allow
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * How loaded this node is, for the readiness probe and /health/load. Each
+ * figure is kept up to date as things happen, so a probe only reads counters,
+ * and never walks sessions or engines.
+ * <p>
+ * Command latency goes into log2 buckets of microseconds, over the current
+ * window and the one before it (ROOM_LATENCY_WINDOW_SECONDS each), so the
+ * percentiles follow recent load rather than everything since startup.
+ */
+public class LoadReport {
+  static final long READY_MAX_QUEUED_BYTES = Config.getLong(Constants.ENV_READY_MAX_QUEUED_BYTES, 64L << 20);
+  static final long WINDOW_NANOS = TimeUnit.SECONDS
+      .toNanos(Math.max(1, Config.getLong(Constants.ENV_LATENCY_WINDOW_SECONDS, 60)));
+
+  private static final int BUCKETS = 40;
+
+  private static volatile boolean storyReady = false;
+  private static final LongAdder sessions = new LongAdder();
+  private static final AtomicInteger activeGroups = new AtomicInteger();
+  private static final Map<String, AtomicInteger> sessionsByGroupId = new ConcurrentHashMap<>();
+  private static final LongAdder queuedBytes = new LongAdder();
+  private static final LongAdder rotationEntries = new LongAdder();
+
+  private static class Window {
+    final long start;
+    final Window previous;
+    final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    Window(long start, Window previous) {
+      this.start = start;
+      // only ever one back, so old windows can go.
+      this.previous = previous == null ? null : new Window(previous);
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    private Window(Window w) {
+      this.start = w.start;
+      this.previous = null;
+      System.arraycopy(w.buckets, 0, buckets, 0, BUCKETS);
+    }
+  }
+
+  private static final AtomicReference<Window> window = new AtomicReference<>(new Window(System.nanoTime(), null));
+
+  public static void setStoryReady(boolean ready) {
+    storyReady = ready;
+  }
+
+  public static void sessionLinked(String groupId) {
+    sessions.increment();
+    if (sessionsByGroupId.computeIfAbsent(groupId, g -> new AtomicInteger()).incrementAndGet() == 1) {
+      activeGroups.incrementAndGet();
+    }
+  }
+
+  public static void sessionUnlinked(String groupId) {
+    sessions.decrement();
+    AtomicInteger count = sessionsByGroupId.get(groupId);
+    if (count != null && count.decrementAndGet() == 0) {
+      activeGroups.decrementAndGet();
+    }
+  }
+
+  public static void queued(long bytes) {
+    queuedBytes.add(bytes);
+  }
+
+  public static void rotationEntryAdded() {
+    rotationEntries.increment();
+  }
+
+  public static void commandTook(long nanos) {
+    long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+    int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    current().buckets[bucket].increment();
+  }
+
+  private static Window current() {
+    long now = System.nanoTime();
+    Window w = window.get();
+    while (now - w.start > WINDOW_NANOS) {
+      // whoever loses the race uses the winner's window.
+      if (window.compareAndSet(w, new Window(now, w))) {
+        return window.get();
+      }
+      w = window.get();
+    }
+    return w;
+  }
+
+  // upper bound of the bucket holding the given fraction of commands, in microseconds.
+  private static long percentile(long[] counts, long total, double fraction) {
+    if (total == 0) {
+      return 0;
+    }
+    long wanted = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= wanted) {
+        return 1L << (i + 1);
+      }
+    }
+    return 1L << BUCKETS;
+  }
+
+  /**
+   * Why this node shouldn't take new players right now, or null if it can.
+   */
+  public static String notReadyReason() {
+    if (!storyReady) {
+      return "story not loaded";
+    }
+    long queued = queuedBytes.sum();
+    if (queued > READY_MAX_QUEUED_BYTES) {
+      return queued + " bytes queued to sessions";
+    }
+    return null;
+  }
+
+  public static JsonObject toJson() {
+    Window w = current();
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (Window each = w; each != null; each = each.previous) {
+      for (int i = 0; i < BUCKETS; i++) {
+        long c = each.buckets[i].sum();
+        counts[i] += c;
+        total += c;
+      }
+    }
+    return Json.createObjectBuilder().add("storyReady", storyReady).add("activeGroups", activeGroups.get())
+        .add("sessions", sessions.sum()).add("queuedBytes", queuedBytes.sum())
+        .add("rotationEntries", rotationEntries.sum())
+        .add("commands",
+            Json.createObjectBuilder().add("count", total).add("p50Micros", percentile(counts, total, 0.5))
+                .add("p99Micros", percentile(counts, total, 0.99)))
+        .build();
+  }
+}
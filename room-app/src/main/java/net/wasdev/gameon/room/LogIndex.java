@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Index of the lines in the log directory that mention a player id, a group
+ * id, or fall in a given minute, for LogView's search.
+ * <p>
+ * Each file's index records how far it has read, and a search first indexes
+ * only the bytes written since. A file that shrinks, or is replaced (Liberty
+ * rotating messages.log), is indexed again from the start. Indexes hold line
+ * offsets, the lines themselves are read back from the file when found.
+ */
+public class LogIndex {
+  private static final int BLOCK_SIZE = 64 * 1024;
+  // longer lines are indexed by their start, and shown cut short.
+  private static final int MAX_LINE = 64 * 1024;
+
+  static final String PLAYER = "p:";
+  static final String GROUP = "g:";
+  static final String MINUTE = "t:";
+
+  private static final Pattern PLAYER_ID = Pattern
+      .compile("\\b(?:id|user|userid|playerId|senderId)[ =:\"]+([^\\s\",}]+)");
+  private static final Pattern GROUP_ID = Pattern.compile("\\b(?:groupId|group)[ =:\"]+([^\\s\",}]+)");
+  // Liberty's [10/19/26 14:03:12:345 UTC], to the minute, some locales put a comma after the date.
+  private static final Pattern TIMESTAMP = Pattern.compile("^\\[(\\d{1,2}/\\d{1,2}/\\d{2,4},? \\d{1,2}:\\d{2})");
+
+  private static final Map<String, FileIndex> indexByPath = new ConcurrentHashMap<>();
+
+  /**
+   * A line found by {@link #search}.
+   */
+  public static class Hit {
+    public final String file;
+    public final long offset;
+    public final String line;
+
+    Hit(String file, long offset, String line) {
+      this.file = file;
+      this.offset = offset;
+      this.line = line;
+    }
+  }
+
+  private static class Offsets {
+    long[] offsets = new long[4];
+    int size = 0;
+
+    void add(long offset) {
+      // a line can match the same key more than once.
+      if (size > 0 && offsets[size - 1] == offset) {
+        return;
+      }
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+      }
+      offsets[size++] = offset;
+    }
+  }
+
+  private static class FileIndex {
+    private Object identity;
+    private long indexedTo = 0;
+    private Map<String, Offsets> offsetsByKey = new HashMap<>();
+
+    synchronized void update(Path path) throws IOException {
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      Object id = attrs.fileKey() != null ? attrs.fileKey() : attrs.creationTime();
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size < indexedTo || !Objects.equals(id, identity)) {
+          identity = id;
+          indexedTo = 0;
+          offsetsByKey = new HashMap<>();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long lineStart = indexedTo;
+        long pos = indexedTo;
+        while (pos < size) {
+          buffer.clear();
+          buffer.limit((int) Math.min(BLOCK_SIZE, size - pos));
+          int read = channel.read(buffer, pos);
+          if (read <= 0) {
+            break;
+          }
+          for (int i = 0; i < read; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+              index(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1), lineStart);
+              lineStart = pos + i + 1;
+              lineLength = 0;
+            } else if (lineLength < MAX_LINE) {
+              if (lineLength == line.length) {
+                line = Arrays.copyOf(line, Math.min(MAX_LINE, line.length * 2));
+              }
+              line[lineLength++] = b;
+            }
+          }
+          pos += read;
+        }
+        // the last line may still be being written, it's picked up next time.
+        indexedTo = lineStart;
+      }
+    }
+
+    private void index(String line, long offset) {
+      Matcher m = PLAYER_ID.matcher(line);
+      while (m.find()) {
+        add(PLAYER + m.group(1), offset);
+      }
+      m = GROUP_ID.matcher(line);
+      while (m.find()) {
+        add(GROUP + m.group(1), offset);
+      }
+      m = TIMESTAMP.matcher(line);
+      if (m.find()) {
+        add(MINUTE + minute(m.group(1)), offset);
+      }
+    }
+
+    private void add(String key, long offset) {
+      offsetsByKey.computeIfAbsent(key, k -> new Offsets()).add(offset);
+    }
+
+    // offsets of lines under any of the keys, and under the minute too if one is given.
+    synchronized long[] find(List<String> keys, String minute) {
+      long[] result = new long[0];
+      for (String key : keys) {
+        Offsets o = offsetsByKey.get(key);
+        if (o != null) {
+          result = union(result, Arrays.copyOf(o.offsets, o.size));
+        }
+      }
+      if (minute != null) {
+        Offsets o = offsetsByKey.get(MINUTE + minute);
+        result = o == null ? new long[0] : intersect(result, Arrays.copyOf(o.offsets, o.size));
+      }
+      return result;
+    }
+  }
+
+  // 10/19/26, 14:03 and 10/19/26 14:03 are the same minute.
+  static String minute(String text) {
+    return text.replace(",", " ").trim().replaceAll("\\s+", " ");
+  }
+
+  /**
+   * Index what is already in dir in the background, so the first search
+   * doesn't have to read the whole directory.
+   */
+  public static void start(String dir) {
+    Runnable index = () -> {
+      try {
+        update(dir);
+      } catch (IOException e) {
+        Log.log(Level.WARNING, LogIndex.class, "Unable to index logs in {0}: {1}", dir, e);
+      }
+    };
+    try {
+      ExecutorService executor = (ManagedExecutorService) new InitialContext().lookup("concurrent/execSvc");
+      executor.submit(index);
+    } catch (NamingException | RejectedExecutionException e) {
+      Log.log(Level.WARNING, LogIndex.class, "Unable to index logs in the background", e);
+    }
+  }
+
+  // the files in dir, oldest first, each indexed up to date.
+  private static File[] update(String dir) throws IOException {
+    File[] files = new File(dir).listFiles(File::isFile);
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    // drop the indexes of files that have gone.
+    indexByPath.keySet().retainAll(pathsOf(files));
+    for (File f : files) {
+      indexByPath.computeIfAbsent(f.getAbsolutePath(), p -> new FileIndex()).update(f.toPath());
+    }
+    return files;
+  }
+
+  /**
+   * Lines of the files in dir mentioning the player or group id q (or, if q is
+   * "time:..." in the minute given), restricted to the minute if one is given,
+   * oldest file first, at most max of them.
+   */
+  public static List<Hit> search(String dir, String q, String minute, int max) throws IOException {
+    List<String> keys = new ArrayList<>();
+    if (q.startsWith("time:")) {
+      minute = minute == null ? q.substring("time:".length()).trim() : minute;
+    } else {
+      keys.add(PLAYER + q);
+      keys.add(GROUP + q);
+    }
+    if (minute != null) {
+      minute = minute(minute);
+    }
+
+    List<Hit> hits = new ArrayList<>();
+    for (File f : update(dir)) {
+      FileIndex index = indexByPath.computeIfAbsent(f.getAbsolutePath(), p -> new FileIndex());
+      long[] offsets = keys.isEmpty() ? index.find(Collections.singletonList(MINUTE + minute), null)
+          : index.find(keys, minute);
+      if (offsets.length == 0) {
+        continue;
+      }
+      try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+        for (long offset : offsets) {
+          if (hits.size() >= max) {
+            return hits;
+          }
+          hits.add(new Hit(f.getName(), offset, readLine(channel, offset)));
+        }
+      }
+    }
+    return hits;
+  }
+
+  private static List<String> pathsOf(File[] files) {
+    List<String> paths = new ArrayList<>();
+    for (File f : files) {
+      paths.add(f.getAbsolutePath());
+    }
+    return paths;
+  }
+
+  private static String readLine(FileChannel channel, long offset) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_LINE, Math.max(0, channel.size() - offset)));
+    while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+      // fill it.
+    }
+    int end = 0;
+    while (end < buffer.position() && buffer.get(end) != '\n') {
+      end++;
+    }
+    return new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+  }
+
+  private static long[] union(long[] a, long[] b) {
+    long[] result = new long[a.length + b.length];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] == b[j]) {
+        result[k++] = a[i++];
+        j++;
+      } else {
+        result[k++] = a[i] < b[j] ? a[i++] : b[j++];
+      }
+    }
+    while (i < a.length) {
+      result[k++] = a[i++];
+    }
+    while (j < b.length) {
+      result[k++] = b[j++];
+    }
+    return Arrays.copyOf(result, k);
+  }
+
+  private static long[] intersect(long[] a, long[] b) {
+    long[] result = new long[Math.min(a.length, b.length)];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] == b[j]) {
+        result[k++] = a[i++];
+        j++;
+      } else if (a[i] < b[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, k);
+  }
+}
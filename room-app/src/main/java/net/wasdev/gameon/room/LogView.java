@@ -19,11 +19,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Base64;
+import java.util.List;
 import java.util.StringTokenizer;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.GZIPOutputStream;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -37,9 +44,12 @@ import javax.ws.rs.core.MediaType;
 /**
  * Servlet implementation class LogView
  */
-@WebServlet("/LogView")
+@WebServlet(urlPatterns = "/LogView", loadOnStartup = 1)
 public class LogView extends HttpServlet {
   private static final long serialVersionUID = 1L;
+  private static final int DEFAULT_TAIL_LINES = 200;
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int DEFAULT_SEARCH_RESULTS = 500;
 
   private void listFilesInDir(PrintWriter out, String dir, String prefix) {
     File f = new File(dir);
@@ -50,8 +60,9 @@ public class LogView extends HttpServlet {
         if (cf.isDirectory()) {
           out.println(" - " + prefix + count + " - " + c + " (dir)<br>");
         } else {
-          out.println(
-              " - " + prefix + count + " - <a href=\"?cmd=view&choice=" + prefix + count + "\">" + c + "</a><br>");
+          out.println(" - " + prefix + count + " - <a href=\"?cmd=view&choice=" + prefix + count + "\">" + c
+              + "</a> (<a href=\"?cmd=tail&lines=" + DEFAULT_TAIL_LINES + "&choice=" + prefix + count
+              + "\">tail</a>)<br>");
         }
         count++;
       }
@@ -60,54 +71,226 @@ public class LogView extends HttpServlet {
     }
   }
 
-  private void viewFile(PrintWriter out, String dir, String countString) {
+  // the file listFilesInDir numbered countString in dir.
+  private File fileFor(String dir, String countString) {
     File f = new File(dir);
     if (f.list() != null) {
       long count = 0;
       for (String c : f.list()) {
         if (countString.equals("" + count)) {
-          System.out.println("LOGVIEW: Asked to view " + dir + " " + countString + " " + Paths.get(dir, c).toString());
-          try (Stream<String> stream = Files.lines(Paths.get(dir, c))) {
-            stream.forEach(out::println);
-          } catch (IOException io) {
-            out.println("ERROR READING FILE " + c + " " + io.getMessage());
-          }
+          return new File(f, c);
         }
         count++;
       }
-    } else {
-      out.println("Directory does not exist to view file from.");
     }
+    return null;
+  }
+
+  private String logDir() {
+    String logdir = System.getenv("X_LOG_DIR");
+    if (logdir == null) {
+      String outdir = System.getenv("WLP_OUTPUT_DIR");
+      logdir = Paths.get(outdir, "defaultServer", "logs").toString();
+    }
+    return logdir;
+  }
+
+  @Override
+  public void init() throws ServletException {
+    String dir;
+    try {
+      dir = logDir();
+    } catch (RuntimeException e) {
+      Log.log(Level.WARNING, this, "No log directory to index: {0}", e);
+      return;
+    }
+    // loaded at startup, so the index is built before anyone searches.
+    LogIndex.start(dir);
   }
 
-  private void processViewCommand(HttpServletRequest request, HttpServletResponse response, PrintWriter out)
+  // the directory a choice from the listing refers to, by its prefix.
+  private String dirFor(String choice) {
+    if (choice.startsWith("o")) {
+      return System.getenv("WLP_OUTPUT_DIR");
+    } else if (choice.startsWith("l")) {
+      return logDir();
+    } else if (choice.startsWith("f")) {
+      return new File(new File(logDir()), "ffdc").getAbsolutePath();
+    }
+    return null;
+  }
+
+  /**
+   * view streams the whole file, or the one byte range asked for with a Range
+   * header, tail streams the last lines=N lines. Either way the bytes go
+   * straight from the file to the response, gzipped if the client takes gzip
+   * (and didn't ask for a range, which is a range of the file as it stands).
+   */
+  private void processViewCommand(HttpServletRequest request, HttpServletResponse response, boolean tail)
       throws IOException {
-    response.addHeader("Content-Type", MediaType.TEXT_PLAIN);
     String choice = request.getParameter("choice");
-    if (choice != null) {
-      if (choice.startsWith("o")) {
-        String outdir = System.getenv("WLP_OUTPUT_DIR");
-        viewFile(out, outdir, choice.substring(1).trim());
-      } else if (choice.startsWith("l")) {
-        String logdir = System.getenv("X_LOG_DIR");
-        if (logdir == null) {
-          String outdir = System.getenv("WLP_OUTPUT_DIR");
-          logdir = Paths.get(outdir, "defaultServer", "logs").toString();
+    if (choice == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, (tail ? "tail" : "view") + " cmd requires choice param");
+      return;
+    }
+    String dir = dirFor(choice);
+    File file = dir == null ? null : fileFor(dir, choice.substring(1).trim());
+    if (file == null || !file.isFile()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No file " + choice + " to view.");
+      return;
+    }
+    System.out.println("LOGVIEW: Asked to " + (tail ? "tail " : "view ") + dir + " " + choice + " " + file);
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // fixed now, so a log being written to doesn't move the end under us.
+      long size = channel.size();
+      long start = 0;
+      long end = size;
+      String range = tail ? null : request.getHeader("Range");
+      if (tail) {
+        int lines = DEFAULT_TAIL_LINES;
+        try {
+          lines = Integer.parseInt(String.valueOf(request.getParameter("lines")).trim());
+        } catch (NumberFormatException e) {
+          // keep the default.
+        }
+        start = tailOffset(channel, size, Math.max(lines, 0));
+      } else if (range != null) {
+        long[] bounds = parseRange(range, size);
+        if (bounds == null) {
+          response.setHeader("Content-Range", "bytes */" + size);
+          response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
         }
-        viewFile(out, logdir, choice.substring(1).trim());
-      } else if (choice.startsWith("f")) {
+        start = bounds[0];
+        end = bounds[1] + 1;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + start + "-" + bounds[1] + "/" + size);
+      }
 
-        String logdir = System.getenv("X_LOG_DIR");
-        if (logdir == null) {
-          String outdir = System.getenv("WLP_OUTPUT_DIR");
-          logdir = Paths.get(outdir, "defaultServer", "logs").toString();
+      response.addHeader("Content-Type", MediaType.TEXT_PLAIN);
+      response.setHeader("Accept-Ranges", "bytes");
+      response.setHeader("Vary", "Accept-Encoding");
+      String acceptEncoding = request.getHeader("Accept-Encoding");
+      if (range == null && acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+        response.setHeader("Content-Encoding", "gzip");
+        GZIPOutputStream gzip = new GZIPOutputStream(response.getOutputStream(), BLOCK_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        for (long pos = start; pos < end; pos += buffer.position(), buffer.clear()) {
+          buffer.limit((int) Math.min(BLOCK_SIZE, end - pos));
+          if (channel.read(buffer, pos) < 0) {
+            break;
+          }
+          gzip.write(buffer.array(), 0, buffer.position());
+        }
+        gzip.finish();
+      } else {
+        response.setContentLengthLong(end - start);
+        WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+        for (long pos = start; pos < end;) {
+          long sent = channel.transferTo(pos, end - pos, target);
+          if (sent <= 0) {
+            break;
+          }
+          pos += sent;
         }
-        String ffdcDir = new File(new File(logdir), "ffdc").getAbsolutePath();
-        viewFile(out, ffdcDir, choice.substring(1).trim());
       }
-    } else {
-      ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST, "view cmd requires choice param");
+      response.flushBuffer();
+    }
+  }
+
+  // where the last lines lines of the file start, reading blocks backwards from the end.
+  static long tailOffset(FileChannel channel, long size, int lines) throws IOException {
+    if (lines == 0) {
+      return size;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+    // a trailing newline ends the last line, it doesn't start another.
+    long end = size;
+    if (size > 0) {
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, size - 1);
+      if (last.get(0) == '\n') {
+        end--;
+      }
+    }
+    int found = 0;
+    for (long blockEnd = end; blockEnd > 0;) {
+      long blockStart = Math.max(0, blockEnd - BLOCK_SIZE);
+      buffer.clear();
+      buffer.limit((int) (blockEnd - blockStart));
+      while (buffer.hasRemaining() && channel.read(buffer, blockStart + buffer.position()) >= 0) {
+        // keep reading until the block is full.
+      }
+      for (int i = buffer.position() - 1; i >= 0; i--) {
+        if (buffer.get(i) == '\n' && ++found == lines) {
+          return blockStart + i + 1;
+        }
+      }
+      blockEnd = blockStart;
+    }
+    return 0;
+  }
+
+  // a single "bytes=a-b", "bytes=a-" or "bytes=-n" range, as inclusive bounds, or null if it can't be served.
+  static long[] parseRange(String header, long size) {
+    String spec = header.trim();
+    if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) {
+      return null;
+    }
+    spec = spec.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) {
+          return null;
+        }
+        start = Math.max(0, size - suffix);
+        end = size - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+      }
+      return start <= end && start < size ? new long[] { start, end } : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Lines of the log directory mentioning the player or group id q, optionally
+   * only those in the minute at (eg, 10/19/26 14:03), from the index.
+   */
+  private void processSearchCommand(HttpServletRequest request, HttpServletResponse response, PrintWriter out)
+      throws IOException {
+    String q = request.getParameter("q");
+    if (q == null || q.trim().isEmpty()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "search cmd requires q param");
+      return;
+    }
+    String at = request.getParameter("at");
+    at = at == null || at.trim().isEmpty() ? null : at.trim();
+    int max = DEFAULT_SEARCH_RESULTS;
+    try {
+      max = Integer.parseInt(String.valueOf(request.getParameter("max")).trim());
+    } catch (NumberFormatException e) {
+      // keep the default.
+    }
+    response.addHeader("Content-Type", MediaType.TEXT_PLAIN);
+    long start = System.nanoTime();
+    List<LogIndex.Hit> hits = LogIndex.search(logDir(), q.trim(), at, max);
+    for (LogIndex.Hit hit : hits) {
+      out.println(hit.file + "@" + hit.offset + ": " + hit.line);
     }
+    out.println("-- " + hits.size() + " lines in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
   }
 
   private void processListCommand(HttpServletResponse response, PrintWriter out) {
@@ -137,65 +320,81 @@ public class LogView extends HttpServlet {
     }
   }
 
+  /**
+   * Basic auth as admin against the mapApiKey, shared with /stats. Sends the
+   * error itself and returns false when the request may not proceed.
+   */
+  static boolean isAdmin(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String authHeader = request.getHeader("Authorization");
+    if (authHeader == null) {
+      response.addHeader("WWW-Authenticate", "Basic realm=\"Ozzy LogView\"");
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Access denied");
+      return false;
+    }
+    StringTokenizer st = new StringTokenizer(authHeader);
+    if (!st.hasMoreTokens() || !st.nextToken().equalsIgnoreCase("Basic") || !st.hasMoreTokens()) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "badly formed auth header.");
+      return false;
+    }
+    String credentials;
+    try {
+      credentials = new String(Base64.getDecoder().decode(st.nextToken()), "UTF-8");
+    } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Error decoding auth");
+      return false;
+    }
+    int p = credentials.indexOf(":");
+    if (p == -1) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "badly formed auth header.");
+      return false;
+    }
+    String login = credentials.substring(0, p).trim();
+    String password = credentials.substring(p + 1).trim();
+
+    String expectedPassword;
+    try {
+      expectedPassword = (String) new InitialContext().lookup("mapApiKey");
+    } catch (NamingException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "unable to obtain pw to auth against");
+      return false;
+    }
+
+    if (!"admin".equals(login) || !expectedPassword.equals(password)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Access denied");
+      return false;
+    }
+    return true;
+  }
+
   /**
    * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse
    *      response)
    */
   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    String authHeader = request.getHeader("Authorization");
-    if (authHeader != null) {
-      StringTokenizer st = new StringTokenizer(authHeader);
-      if (st.hasMoreTokens()) {
-        String basic = st.nextToken();
-
-        if (basic.equalsIgnoreCase("Basic")) {
-          try {
-            String credentials = new String(Base64.getDecoder().decode(st.nextToken()));
-            int p = credentials.indexOf(":");
-            if (p != -1) {
-              String login = credentials.substring(0, p).trim();
-              String password = credentials.substring(p + 1).trim();
-
-              String expectedPassword;
-              try {
-                expectedPassword = (String) new InitialContext().lookup("mapApiKey");
-              } catch (NamingException e) {
-                ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN,
-                    "unable to obtain pw to auth against");
-                return;
-              }
-
-              if ("admin".equals(login) && expectedPassword.equals(password)) {
-
-                String cmd = request.getParameter("cmd");
-                PrintWriter out = response.getWriter();
-
-                if ("list".equals(cmd)) {
-                  processListCommand(response, out);
-                } else if ("view".equals(cmd)) {
-                  processViewCommand(request, response, out);
-                } else {
-                  response.addHeader("Content-Type", MediaType.TEXT_HTML);
-                  out.println("<center><h1>Welcome to LogView.</h1></center>"
-                      + "<center>Your friendly logging choice.</center><hr><p><p><center>This logging console is shoeware, you may use it, but you must buy Ozzy shoes.</center><p><p>");
-                  out.println("<center><a href=\"?cmd=list\">Take me to the logs!!... </a></center>");
-                }
-              }
-            } else {
-              ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN, "badly formed auth header.");
-              return;
-            }
-          } catch (UnsupportedEncodingException e) {
-            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN, "Error decoding auth");
-            return;
-          }
-        }
-      }
-    } else {
-      response.addHeader("WWW-Authenticate", "Basic realm=\"Ozzy LogView\"");
-      ((HttpServletResponse) response).sendError(HttpServletResponse.SC_UNAUTHORIZED, "Access denied");
+    if (!isAdmin(request, response)) {
       return;
     }
+
+    String cmd = request.getParameter("cmd");
+
+    if ("list".equals(cmd)) {
+      processListCommand(response, response.getWriter());
+    } else if ("search".equals(cmd)) {
+      processSearchCommand(request, response, response.getWriter());
+    } else if ("view".equals(cmd) || "tail".equals(cmd)) {
+      // streamed as bytes, so no writer.
+      processViewCommand(request, response, "tail".equals(cmd));
+    } else {
+      PrintWriter out = response.getWriter();
+      response.addHeader("Content-Type", MediaType.TEXT_HTML);
+      out.println("<center><h1>Welcome to LogView.</h1></center>"
+          + "<center>Your friendly logging choice.</center><hr><p><p><center>This logging console is shoeware, you may use it, but you must buy Ozzy shoes.</center><p><p>");
+      out.println("<center><a href=\"?cmd=list\">Take me to the logs!!... </a></center>");
+      out.println("<center><form><input type=\"hidden\" name=\"cmd\" value=\"search\">"
+          + "Player or group id (or time:MM/dd/yy HH:mm) <input name=\"q\"> "
+          + "at minute (optional) <input name=\"at\"> <input type=\"submit\" value=\"Search the logs\">"
+          + "</form></center>");
+    }
   }
 
   /**
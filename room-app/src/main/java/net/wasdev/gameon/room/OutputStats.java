@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * What the room has written to mediator sessions, per group, for /stats: the
+ * bytes as the frames stand, how many of those went to sessions that
+ * negotiated permessage-deflate (the container compresses those, we don't
+ * measure by how much), and the commands refused by rate limiting.
+ */
+public class OutputStats {
+  private static final Map<String, GroupBytes> bytesByGroupId = new ConcurrentHashMap<>();
+
+  private static class GroupBytes {
+    final LongAdder frames = new LongAdder();
+    final LongAdder raw = new LongAdder();
+    final LongAdder deflating = new LongAdder();
+    final LongAdder throttled = new LongAdder();
+  }
+
+  public static void record(String groupId, int frames, long raw, long toDeflatingSessions) {
+    GroupBytes bytes = bytesByGroupId.computeIfAbsent(groupId, g -> new GroupBytes());
+    bytes.frames.add(frames);
+    bytes.raw.add(raw);
+    bytes.deflating.add(toDeflatingSessions);
+  }
+
+  public static void recordThrottled(String groupId) {
+    bytesByGroupId.computeIfAbsent(groupId, g -> new GroupBytes()).throttled.increment();
+  }
+
+  /**
+   * UTF-8 length of the frame, without encoding it.
+   */
+  public static int utf8Length(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  public static JsonObject toJson() {
+    JsonObjectBuilder groups = Json.createObjectBuilder();
+    for (Map.Entry<String, GroupBytes> e : bytesByGroupId.entrySet()) {
+      GroupBytes bytes = e.getValue();
+      groups.add(e.getKey(), Json.createObjectBuilder()
+          .add("frames", bytes.frames.sum())
+          .add("bytes", bytes.raw.sum())
+          .add("deflateNegotiatedBytes", bytes.deflating.sum())
+          .add("throttledCommands", bytes.throttled.sum()));
+    }
+    return Json.createObjectBuilder().add("groups", groups).build();
+  }
+}
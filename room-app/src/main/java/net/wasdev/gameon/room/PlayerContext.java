@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.ozzy.runtime.RoomEngine;
+
+import net.wasdev.gameon.room.LifecycleManager.SessionRoomResponseProcessor.GroupStream;
+
+/**
+ * A connected player, with their group resolved once at roomHello. Kept on the
+ * player's session and by the response processor, so commands and the events
+ * they send don't route the player id or look up the group again.
+ */
+public class PlayerContext {
+  private static final int COMMAND_BURST = Config.getInt(Constants.ENV_PLAYER_COMMAND_BURST, 10);
+  private static final int COMMANDS_PER_SECOND = Config.getInt(Constants.ENV_PLAYER_COMMANDS_PER_SECOND, 5);
+
+  final String playerId;
+  final String groupId;
+  // the group's sessions, bookmarks and replay buffer.
+  final GroupStream stream;
+  // the group's active holodeck program, resolved by the holodeck on first use.
+  volatile AtomicReference<RoomEngine> engine;
+  // sessions linked to this player, guarded by the processor's map of contexts.
+  int sessions;
+  final TokenBucket commands = new TokenBucket(COMMAND_BURST, COMMANDS_PER_SECOND);
+  // the reply to a throttled command, built when first needed.
+  volatile String throttledFrame;
+
+  PlayerContext(String playerId, String groupId, GroupStream stream) {
+    this.playerId = playerId;
+    this.groupId = groupId;
+    this.stream = stream;
+  }
+
+  public String getPlayerId() {
+    return playerId;
+  }
+
+  public String getGroupId() {
+    return groupId;
+  }
+}
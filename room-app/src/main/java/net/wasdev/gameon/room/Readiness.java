@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Readiness, 503 until the story is compiled, and again while sessions are too
+ * far behind, with the load report alongside. /health/load gives the report on
+ * its own, always 200.
+ */
+@WebServlet({ "/health/ready", "/health/load" })
+public class Readiness extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse
+   *      response)
+   */
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    response.setContentType("application/json");
+    PrintWriter out;
+    if ("/health/load".equals(request.getServletPath())) {
+      response.setStatus(HttpServletResponse.SC_OK);
+      out = response.getWriter();
+      out.println(LoadReport.toJson());
+      return;
+    }
+
+    String reason = LoadReport.notReadyReason();
+    JsonObjectBuilder result = Json.createObjectBuilder().add("status", reason == null ? "UP" : "DOWN");
+    if (reason != null) {
+      result.add("reason", reason);
+    }
+    result.add("load", LoadReport.toJson());
+    response.setStatus(reason == null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    out = response.getWriter();
+    out.println(result.build());
+  }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring of the most recent frames sent to a group, indexed by bookmark, so a
+ * session reconnecting with the bookmark it last saw can be caught up from
+ * memory instead of re-running /look.
+ * <p>
+ * Bounded by frame count and by an estimate of the memory the frames hold
+ * (two bytes a char), whichever fills first evicts the oldest frames.
+ */
+public class ReplayBuffer {
+  private final long[] bookmarks;
+  private final String[] frames;
+  private final long maxBytes;
+
+  private int head = 0;
+  private int size = 0;
+  private long bytes = 0;
+  // highest bookmark no longer held, anything at or after it can still be replayed.
+  private long evictedUpTo = -1;
+  private long newest = -1;
+
+  public ReplayBuffer(int capacity, long maxBytes) {
+    this.bookmarks = new long[Math.max(capacity, 0)];
+    this.frames = new String[Math.max(capacity, 0)];
+    this.maxBytes = maxBytes;
+  }
+
+  public synchronized void add(long bookmark, String frame) {
+    newest = Math.max(newest, bookmark);
+    if (frames.length == 0) {
+      evictedUpTo = newest;
+      return;
+    }
+    if (size == frames.length) {
+      evictOldest();
+    }
+    int tail = (head + size) % frames.length;
+    bookmarks[tail] = bookmark;
+    frames[tail] = frame;
+    size++;
+    bytes += 2L * frame.length();
+    while (bytes > maxBytes && size > 0) {
+      evictOldest();
+    }
+  }
+
+  private void evictOldest() {
+    evictedUpTo = Math.max(evictedUpTo, bookmarks[head]);
+    bytes -= 2L * frames[head].length();
+    frames[head] = null;
+    head = (head + 1) % frames.length;
+    size--;
+  }
+
+  /**
+   * Frames sent after the given bookmark, oldest first.
+   *
+   * @param bookmark last bookmark the session saw
+   * @return the frames, or null if some have already been evicted, or the
+   *         bookmark is newer than anything held
+   */
+  public synchronized List<String> framesAfter(long bookmark) {
+    if (bookmark < evictedUpTo || bookmark > newest) {
+      return null;
+    }
+    List<String> result = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      int idx = (head + i) % frames.length;
+      if (bookmarks[idx] > bookmark) {
+        result.add(frames[idx]);
+      }
+    }
+    return result;
+  }
+
+  // the frames held belong to a timeline that has ended.
+  public synchronized void clear() {
+    for (int i = 0; i < size; i++) {
+      frames[(head + i) % frames.length] = null;
+    }
+    head = 0;
+    size = 0;
+    bytes = 0;
+    evictedUpTo = -1;
+    newest = -1;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized long bytes() {
+    return bytes;
+  }
+}
@@ -15,11 +15,12 @@
  *******************************************************************************/
 package net.wasdev.gameon.room;
 
+import java.io.IOException;
 import java.io.StringReader;
 import java.net.ConnectException;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import javax.enterprise.concurrent.ManagedScheduledExecutorService;
@@ -29,11 +30,11 @@ import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSession;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
@@ -41,12 +42,13 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import org.gameontext.signed.SignedClientRequestFilter;
 import org.ozzy.runtime.RoomEngine;
 
 import net.wasdev.gameon.room.LifecycleManager.RegistrationRoom;
 
 public class RoomRegistrationHandler {
+  static final long RETRY_MIN_MILLIS = Math.max(1, Config.getLong(Constants.ENV_REGISTRATION_RETRY_MIN_MILLIS, 1000));
+  static final long RETRY_MAX_MILLIS = Config.getLong(Constants.ENV_REGISTRATION_RETRY_MAX_MILLIS, 300000);
 
   private final String id;
   private final String secret;
@@ -55,7 +57,8 @@ public class RoomRegistrationHandler {
   private final String mapHealth;
 
   private final RegistrationRoom room;
-  private AtomicBoolean handling503 = new AtomicBoolean(false);
+  // failed attempts in a row, only touched by the one attempt scheduled at a time.
+  private int attempts = 0;
   private final String token;
 
   private final Client cleanClient;
@@ -74,14 +77,13 @@ public class RoomRegistrationHandler {
       throw new IllegalStateException("The environment variable " + Constants.ENV_MAP_SVC + " was not defined.");
     }
     mapHealth = System.getenv(Constants.ENV_MAP_HEALTH_SVC);
-    if (mapLocation == null) {
+    if (mapHealth == null) {
       throw new IllegalStateException("The environment variable " + Constants.ENV_MAP_HEALTH_SVC + " was not defined.");
     }
 
     token = "";
 
-    cleanClient = ClientBuilder.newBuilder().property("com.ibm.ws.jaxrs.client.ssl.config", "DefaultSSLSettings")
-        .property("com.ibm.ws.jaxrs.client.disableCNCheck", true).build();
+    cleanClient = SharedClients.plainClient();
   }
 
   private static class RegistrationResult {
@@ -100,6 +102,24 @@ public class RoomRegistrationHandler {
     }
   }
 
+  /**
+   * Map answered with an error status: worth another try on a 5xx, not on a
+   * 4xx, which won't change until the room or its config does.
+   */
+  private static class RegistrationRefused extends Exception {
+    private static final long serialVersionUID = 1L;
+    final int code;
+
+    RegistrationRefused(String message, int code) {
+      super(message);
+      this.code = code;
+    }
+
+    boolean isRetryable() {
+      return code >= 500;
+    }
+  }
+
   private static RegistrationResult MAP_UNAVAILABLE = new RegistrationResult(
       RegistrationResult.Type.SERVICE_UNAVAILABLE);
 
@@ -111,18 +131,11 @@ public class RoomRegistrationHandler {
   }
 
   /**
-   * Obtain a jaxrs client configured appropriately for ssl to map.
+   * Obtain a jaxrs client configured appropriately for ssl to map, shared by
+   * every request (and retry) made as this room's id.
    */
   private Client getClient() throws Exception {
-
-    // Build client that uses the SSLContext defined by 'DefaultSSLSettings' in
-    // server.xml
-    Client client = ClientBuilder.newBuilder().property("com.ibm.ws.jaxrs.client.ssl.config", "DefaultSSLSettings")
-        .property("com.ibm.ws.jaxrs.client.disableCNCheck", true).build();
-    // add our request signer
-    client.register(new SignedClientRequestFilter(id, secret));
-
-    return client;
+    return SharedClients.signedClient(id, secret);
   }
 
   /**
@@ -136,9 +149,6 @@ public class RoomRegistrationHandler {
     // If map service isn't healthy yet, don't even bother (but make sure
     // to try again later!)
     if (!mapIsHealthy()) {
-      if (handling503.compareAndSet(false, true)) {
-        handle503();
-      }
       return MAP_UNAVAILABLE;
     }
 
@@ -160,6 +170,7 @@ public class RoomRegistrationHandler {
       switch (code) {
       case 204: {
         // room is unknown to map
+        r.close();
         result.type = RegistrationResult.Type.NOT_REGISTERED;
         return result;
       }
@@ -199,21 +210,19 @@ public class RoomRegistrationHandler {
       case 503: {
         // service was unavailable.. we need to reschedule ourselves
         // to try again later..
-        if (handling503.compareAndSet(false, true)) {
-          handle503();
-        }
+        r.close();
         result.type = RegistrationResult.Type.SERVICE_UNAVAILABLE;
         return result;
       }
       default: {
-        throw new Exception("Unknown response code from map " + code);
+        r.close();
+        throw new RegistrationRefused("Unknown response code from map " + code, code);
       }
       }
+    } catch (RegistrationRefused e) {
+      throw e;
     } catch (ProcessingException e) {
       if (e.getCause() instanceof ConnectException) {
-        if (handling503.compareAndSet(false, true)) {
-          handle503();
-        }
         result.type = RegistrationResult.Type.SERVICE_UNAVAILABLE;
         return result;
       } else {
@@ -224,50 +233,60 @@ public class RoomRegistrationHandler {
     }
   }
 
-  private void handle503() throws Exception {
-    try {
-      Log.log(Level.INFO, this, "Scheduling room {0} to be registered via bg thread.", room.getId());
-      ManagedScheduledExecutorService executor;
-      executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
-
-      RegisterRunnable r = new RegisterRunnable();
-      Future<?> f = executor.scheduleAtFixedRate(r, 10, 10, TimeUnit.SECONDS);
-      r.setFuture(f);
+  /**
+   * Register in the background, retrying with exponential backoff (and
+   * jitter, so a fleet restarting together doesn't retry together) until map
+   * has the room. Only map being unreachable or failing (I/O errors, 5xx) is
+   * retried; a 4xx, a bad signature or bad config is logged and left there.
+   */
+  public void start() {
+    schedule(0);
+  }
 
-    } catch (Exception e) {
-      throw new Exception("Error creating scheduler to handle 503 response from map", e);
+  private void schedule(long delayMillis) {
+    try {
+      ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext()
+          .lookup("concurrent/execSvc");
+      executor.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (NamingException | RejectedExecutionException e) {
+      Log.log(Level.SEVERE, this, "Unable to schedule registration for room " + room.getId(), e);
     }
   }
 
-  private class RegisterRunnable implements Runnable {
-    private Future<?> f = null;
-    private volatile boolean done = false;
-
-    // Allow runnable to cancel itself.
-    public void setFuture(Future<?> f) {
-      if (done && !f.isCancelled()) {
-        f.cancel(true);
+  private void attempt() {
+    boolean registered = false;
+    try {
+      registered = performRegistration();
+    } catch (RegistrationRefused e) {
+      if (!e.isRetryable()) {
+        Log.log(Level.SEVERE, this, "Room Registration REFUSED for room " + room.getId() + ", not retrying", e);
+        return;
       }
-
-      this.f = f;
+      Log.log(Level.SEVERE, this, "Room Registration FAILED", e);
+    } catch (Exception e) {
+      if (!causedByIO(e)) {
+        Log.log(Level.SEVERE, this, "Room Registration FAILED for room " + room.getId() + ", not retrying", e);
+        return;
+      }
+      Log.log(Level.SEVERE, this, "Room Registration FAILED", e);
     }
+    if (registered) {
+      attempts = 0;
+      return;
+    }
+    long backoff = Math.min(RETRY_MAX_MILLIS, RETRY_MIN_MILLIS << Math.min(attempts++, 20));
+    long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    Log.log(Level.INFO, this, "Room {0} not registered yet, trying again in {1}ms", room.getId(), delay);
+    schedule(delay);
+  }
 
-    public void run() {
-      try {
-        Log.log(Level.INFO, this, "Registration thread for room {0} has awoken.", room.getId());
-
-        if (performRegistration()) {
-          done = true;
-
-          if (f != null && !f.isCancelled())
-            f.cancel(true);
-        }
-      } catch (Exception e) {
-        // we're in a thread.. documentation for the scheduled executor service says
-        // to throw an exception to terminate the scheduler.. here we go.
-        throw new RuntimeException("Registration Thread Fail", e);
+  private static boolean causedByIO(Throwable t) {
+    for (; t != null; t = t.getCause()) {
+      if (t instanceof IOException) {
+        return true;
       }
-    };
+    }
+    return false;
   }
 
   public boolean performRegistration() throws Exception {
@@ -289,10 +308,11 @@ public class RoomRegistrationHandler {
       if (newRegistration.type == RegistrationResult.Type.REGISTERED) {
         updateRoomWithExits(newRegistration.registeredObject);
       }
-      return true;
+      // map went away between the query and the post, try again later.
+      return newRegistration.type != RegistrationResult.Type.SERVICE_UNAVAILABLE;
     }
     case SERVICE_UNAVAILABLE: {
-      // background thread has been scheduled to re-attempt registration later.
+      // attempt() will schedule another try.
       return false;
     }
     default: {
@@ -455,6 +475,10 @@ public class RoomRegistrationHandler {
       }
     } catch (RuntimeException pe) {
       Log.log(Level.SEVERE, "Error registering room provider : {0}", pe.toString());
+      if (!causedByIO(pe)) {
+        // failed before it got anywhere near map, signing the request say.
+        throw pe;
+      }
       // Unable to connect to map w/in reasonable time
       return MAP_UNAVAILABLE;
     }
@@ -481,8 +505,8 @@ public class RoomRegistrationHandler {
 
         r.type = RegistrationResult.Type.NOT_REGISTERED;
 
-        throw new Exception("Room operation did not report success, got error code " + response.getStatus() + " "
-            + response.getStatusInfo().getReasonPhrase());
+        throw new RegistrationRefused("Room operation did not report success, got error code " + response.getStatus()
+            + " " + response.getStatusInfo().getReasonPhrase(), response.getStatus());
       }
     } finally {
       response.close();
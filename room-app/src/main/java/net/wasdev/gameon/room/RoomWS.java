@@ -15,18 +15,10 @@
  *******************************************************************************/
 package net.wasdev.gameon.room;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import javax.json.Json;
@@ -39,23 +31,11 @@ import javax.websocket.EndpointConfig;
 import javax.websocket.MessageHandler;
 import javax.websocket.Session;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.eclipse.microprofile.metrics.annotation.Counted;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.eclipse.microprofile.opentracing.Traced;
 import org.ozzy.model.Item;
-import org.ozzy.model.Room;
-import org.ozzy.model.Story;
-import org.ozzy.runtime.RoomEngine;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.constructor.Constructor;
 
 import net.wasdev.gameon.room.LifecycleManager.Holodeck;
 
@@ -198,7 +178,7 @@ public class RoomWS extends Endpoint {
       return;
     }
     if (contents[0].equals("room")) {
-      processCommand(contents[2]);
+      processCommand(session, contents[2]);
       return;
     }
     if (contents[0].equals("roomGoodbye")) {
@@ -209,66 +189,8 @@ public class RoomWS extends Endpoint {
         message);
   }
 
-  private static class StreamConsumer implements Runnable {
-    private InputStream is;
-    private Consumer<String> c;
-
-    public StreamConsumer(InputStream is, Consumer<String> c) {
-      this.is = is;
-      this.c = c;
-    }
-
-    @Override
-    public void run() {
-      new BufferedReader(new InputStreamReader(is)).lines().forEach(c);
-    }
-  }
-
-  private void triggerWebAppReload() {
-    System.out.println("poking file for reload");
-    try {
-      Process process;
-
-      System.out.println("using runtime exec");
-      process = Runtime.getRuntime().exec("touch /opt/ol/wlp/usr/servers/defaultServer/apps/room-app.war");
-
-      StreamConsumer sc = new StreamConsumer(process.getInputStream(), System.out::println);
-      Executors.newSingleThreadExecutor().submit(sc);
-      int exitCode = process.waitFor();
-      System.out.println("exec code " + exitCode);
-    } catch (Exception e) {
-      System.out.println("poke failure during reload.. ");
-      e.printStackTrace();
-    }
-  }
-  
-  private InputStream readFromHttp(String url) throws ClientProtocolException, IOException {
-    CloseableHttpClient httpclient = HttpClients.createDefault();
-    HttpGet httpget = new HttpGet(url);
-    CloseableHttpResponse response = httpclient.execute(httpget);
-    byte[] data = null;
-    try {
-      HttpEntity entity = response.getEntity();
-      if (entity != null) {
-        data = EntityUtils.toByteArray(entity);
-      } else {
-        throw new IOException("Unable to load yaml");
-      }
-    } finally {
-      response.close();
-    }
-    return new ByteArrayInputStream(data);
-  }
-
-  private Story parseYaml(InputStream inputStream) {
-    Constructor c = new Constructor(Story.class);
-    Yaml yaml = new Yaml(c);
-    Story s = yaml.load(inputStream);
-    return s;
-  }  
-
   // process a command
-  private void processCommand(String json) throws IOException {
+  private void processCommand(Session session, String json) throws IOException {
     Log.log(Level.FINE, this, "Command received from the user, " + this);
     JsonObject msg = Json.createReader(new StringReader(json)).readObject();
 
@@ -276,31 +198,18 @@ public class RoomWS extends Endpoint {
     String userid = Message.getValue(msg.get(Constants.USERID));
 
     if ("/ydebug reload".equals(content.toLowerCase())) {
-      srrp.playerEvent(userid, "DEBUG: Reload Requested.. parsing new yaml & checking for issues", null);
-      InputStream is = readFromHttp("https://raw.githubusercontent.com/suehle/gameon-yaml-driven-room/main/roomyaml-all-br"); //TODO: CONFIG!!
-      try {
-        Story s = parseYaml(is);
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        pw.println("DEBUG: ---ooOO[[[ Validating...  ]]]OOoo---\n");
-        for(Room t : s.getRooms()) {
-          //verification step for testing.
-          RoomEngine.verifyRoom(s.getVars(), s.getCommands(), t, pw);
-        }
-        pw.println("");
-        pw.flush();
-        srrp.playerEvent(userid, sw.toString(), null);
-        srrp.playerEvent(userid, "DEBUG: Triggering **full app restart**.. this will take a mo.. ", "The world is being rebooted, please wait.");
-        triggerWebAppReload();
-      }catch(Exception e) {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        e.printStackTrace(pw);
-        srrp.playerEvent(userid, "DEBUG: Error processing yaml: \n\n  "+sw.toString(), null);
+      // fetching, validating & restarting takes a while, keep it off the websocket thread.
+      if (!YamlReload.start(srrp, userid)) {
+        srrp.playerEvent(userid, "DEBUG: A reload is already in progress, hang tight..", null);
       }
     } else {
       if (content.startsWith("/")) {
-        holodeck.command(userid, content.substring(1));
+        PlayerContext player = srrp.contextFor(session, userid);
+        if (srrp.allowCommand(player)) {
+          holodeck.command(player, content.substring(1));
+        } else {
+          rejectCommand(session, player);
+        }
       } else {
         String username = Message.getValue(msg.get(Constants.USERNAME));
         if (username == null) {
@@ -308,11 +217,17 @@ public class RoomWS extends Endpoint {
           username = userid;
         }
         // everything else is chat.
-				srrp.chatEvent(userid, username, content);
+				srrp.chatEvent(srrp.contextFor(session, userid), username, content);
       }
     }
   }
 
+  // already counted per group for /stats by allowCommand.
+  private void rejectCommand(Session session, PlayerContext player) {
+    Log.log(Level.FINE, this, "Throttled command from {0} in group {1}", player.getPlayerId(), player.getGroupId());
+    srrp.commandThrottled(session, player);
+  }
+
   // add a new player to the room
   @Traced
   @Timed(name = "addNewPlayer_timer", reusable = true, tags = "label=websocket")
@@ -327,9 +242,14 @@ public class RoomWS extends Endpoint {
     Log.log(Level.INFO, this, "*** Adding player {0} from room {1} via session {2}", userid, "holodeck",
         session.getId());
     //link the session before using the holodeck =)
-    srrp.linkSessionWithPlayer(session, userid);
-    
-    holodeck.addUserToRoom(userid, username);
+    PlayerContext player = srrp.linkSessionWithPlayer(session, userid);
+
+    // a reconnecting player tells us the last bookmark they saw, if we still
+    // hold everything since then, replay it rather than rebuilding the room.
+    String bookmark = Message.getValue(msg.get(Constants.BOOKMARK));
+    boolean resumed = bookmark != null && srrp.replay(session, player, bookmark);
+
+    holodeck.addUserToRoom(player, username, resumed);
   }
 
   @Traced
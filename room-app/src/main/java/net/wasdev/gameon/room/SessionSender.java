@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.Extension;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * Queues the frames bound for one mediator session and writes them with the
+ * async remote, one at a time, so a session that is slow to read never holds
+ * the thread delivering to the rest of its group.
+ * <p>
+ * Each write is bounded by a send timeout (ROOM_SEND_TIMEOUT_MILLIS), and the
+ * session is closed as too slow when the frames waiting for it pass
+ * ROOM_SESSION_MAX_QUEUED_BYTES, or a write fails.
+ * <p>
+ * With ROOM_COALESCE_MICROS set, an idle session waits that long after its
+ * first frame (or until ROOM_COALESCE_MAX_BYTES are queued) before writing,
+ * then writes everything queued as one websocket batch and flushes it once,
+ * so a burst like a location event, its look and the room echoes costs one
+ * flush rather than one per frame.
+ */
+public class SessionSender implements SendHandler {
+  private static final long SEND_TIMEOUT_MILLIS = Config.getLong(Constants.ENV_SEND_TIMEOUT_MILLIS, 10000);
+  private static final long MAX_QUEUED_BYTES = Config.getLong(Constants.ENV_SESSION_MAX_QUEUED_BYTES,
+      1024 * 1024);
+  private static final long COALESCE_MICROS = Config.getLong(Constants.ENV_COALESCE_MICROS, 0);
+  private static final long COALESCE_MAX_BYTES = Config.getLong(Constants.ENV_COALESCE_MAX_BYTES, 16 * 1024);
+
+  // only looked up when coalescing is on, null if it can't be found.
+  private static class Flusher {
+    static final ScheduledExecutorService EXECUTOR = lookup();
+
+    private static ScheduledExecutorService lookup() {
+      try {
+        return (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+      } catch (NamingException e) {
+        Log.log(Level.WARNING, SessionSender.class, "No executor to coalesce session writes, sending immediately", e);
+        return null;
+      }
+    }
+  }
+
+  private final Session session;
+  private final boolean coalescing;
+  private final boolean deflating;
+
+  // all guarded by this.
+  private final Queue<String> queue = new ArrayDeque<>();
+  private long queuedBytes = 0;
+  private String inFlight = null;
+  private boolean closed = false;
+  private boolean flushScheduled = false;
+
+  private SessionSender(Session session) {
+    this.session = session;
+    session.getAsyncRemote().setSendTimeout(SEND_TIMEOUT_MILLIS);
+    boolean batching = false;
+    if (COALESCE_MICROS > 0 && Flusher.EXECUTOR != null) {
+      try {
+        session.getAsyncRemote().setBatchingAllowed(true);
+        batching = true;
+      } catch (IOException e) {
+        Log.log(Level.WARNING, this, "Unable to batch writes for session {0}: {1}", session.getId(), e);
+      }
+    }
+    this.coalescing = batching;
+
+    boolean deflate = false;
+    for (Extension e : session.getNegotiatedExtensions()) {
+      deflate |= LifecycleManager.PERMESSAGE_DEFLATE.equals(e.getName());
+    }
+    this.deflating = deflate;
+  }
+
+  /**
+   * True if the container compresses what is written to this session.
+   */
+  public boolean isDeflating() {
+    return deflating;
+  }
+
+  /**
+   * Sender for the session, created when the session is opened.
+   */
+  public static SessionSender of(Session session) {
+    SessionSender sender = (SessionSender) session.getUserProperties().get(Constants.SESSION_SENDER);
+    if (sender == null) {
+      synchronized (session) {
+        sender = (SessionSender) session.getUserProperties().get(Constants.SESSION_SENDER);
+        if (sender == null) {
+          sender = new SessionSender(session);
+          session.getUserProperties().put(Constants.SESSION_SENDER, sender);
+        }
+      }
+    }
+    return sender;
+  }
+
+  /**
+   * Queue the frames to be sent in order.
+   *
+   * @return false if the session has been given up on, and the frames dropped
+   */
+  public boolean send(List<String> frames) {
+    String next;
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      for (String frame : frames) {
+        queue.add(frame);
+        addQueued(frame.length());
+      }
+      if (queuedBytes > MAX_QUEUED_BYTES) {
+        closed = true;
+        Log.log(Level.WARNING, this, "Session {0} is {1} bytes behind, closing it", session.getId(), queuedBytes);
+        dropQueue();
+        next = null;
+      } else if (inFlight != null) {
+        return true;
+      } else if (coalescing && queuedBytes < COALESCE_MAX_BYTES) {
+        // leave the window open for whatever comes next, the flush writes it all.
+        if (!flushScheduled) {
+          flushScheduled = true;
+          Flusher.EXECUTOR.schedule(this::flush, COALESCE_MICROS, TimeUnit.MICROSECONDS);
+        }
+        return true;
+      } else {
+        next = inFlight = queue.poll();
+      }
+    }
+    if (next == null) {
+      close("Too far behind");
+      return false;
+    }
+    write(next);
+    return true;
+  }
+
+  private void flush() {
+    String next;
+    synchronized (this) {
+      flushScheduled = false;
+      if (closed || inFlight != null) {
+        return;
+      }
+      next = inFlight = queue.poll();
+    }
+    if (next != null) {
+      write(next);
+    }
+  }
+
+  @Override
+  public void onResult(SendResult result) {
+    String next;
+    synchronized (this) {
+      addQueued(-inFlight.length());
+      inFlight = null;
+      if (closed) {
+        return;
+      }
+      if (!result.isOK()) {
+        closed = true;
+        dropQueue();
+        Log.log(Level.WARNING, this, "Send to session {0} failed, closing it: {1}", session.getId(),
+            result.getException());
+        next = null;
+      } else {
+        next = inFlight = queue.poll();
+        if (next == null && !coalescing) {
+          return;
+        }
+      }
+    }
+    if (result.isOK() && next == null) {
+      // the batch is all written, push it out.
+      try {
+        session.getAsyncRemote().flushBatch();
+      } catch (IOException e) {
+        Log.log(Level.WARNING, this, "Flush to session {0} failed, closing it: {1}", session.getId(), e);
+        synchronized (this) {
+          closed = true;
+          dropQueue();
+        }
+        close("Send failed");
+      }
+    } else if (next == null) {
+      close("Send failed");
+    } else {
+      write(next);
+    }
+  }
+
+  private void write(String frame) {
+    try {
+      session.getAsyncRemote().sendText(frame, this);
+    } catch (RuntimeException e) {
+      // eg, the session closed under us, the handler won't be called.
+      synchronized (this) {
+        closed = true;
+        queue.clear();
+        addQueued(-queuedBytes);
+        inFlight = null;
+      }
+      Log.log(Level.FINE, this, "Send to session {0} refused: {1}", session.getId(), e);
+    }
+  }
+
+  // keeps the node's total in step, see LoadReport.
+  private void addQueued(long delta) {
+    queuedBytes += delta;
+    LoadReport.queued(delta);
+  }
+
+  // all but the frame being written, which onResult accounts for.
+  private void dropQueue() {
+    queue.clear();
+    addQueued((inFlight == null ? 0 : inFlight.length()) - queuedBytes);
+  }
+
+  private void close(String reason) {
+    try {
+      session.close(new CloseReason(CloseCodes.TRY_AGAIN_LATER, reason));
+    } catch (IOException | RuntimeException e) {
+      Log.log(Level.FINE, this, "Error closing session {0}: {1}", session.getId(), e);
+    }
+  }
+
+  /**
+   * Bytes of frames queued or being written, counting a char as a byte.
+   */
+  public synchronized long getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestFilter;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.gameontext.signed.SignedClientRequestFilter;
+
+/**
+ * The http clients the room talks out through, built once and shared, so
+ * story fetches and map registration (retries and all) reuse keep-alive
+ * connections and their TLS sessions, instead of building a client, and a
+ * connection pool, per call.
+ * <p>
+ * No background threads are started, idle connections are checked before reuse
+ * and retired after ROOM_HTTP_CONNECTION_TTL_SECONDS, so an app restart leaves
+ * nothing running behind it.
+ */
+public class SharedClients {
+  static final int MAX_CONNECTIONS = Config.getInt(Constants.ENV_HTTP_MAX_CONNECTIONS, 20);
+  static final int MAX_CONNECTIONS_PER_ROUTE = Config.getInt(Constants.ENV_HTTP_MAX_CONNECTIONS_PER_ROUTE, 5);
+  static final int CONNECT_TIMEOUT_MILLIS = Config.getInt(Constants.ENV_HTTP_CONNECT_TIMEOUT_MILLIS, 5000);
+  static final int READ_TIMEOUT_MILLIS = Config.getInt(Constants.ENV_HTTP_READ_TIMEOUT_MILLIS, 30000);
+  static final long CONNECTION_TTL_SECONDS = Config.getLong(Constants.ENV_HTTP_CONNECTION_TTL_SECONDS, 60);
+
+  // built on first use.
+  private static class Http {
+    static final PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+        CONNECTION_TTL_SECONDS, TimeUnit.SECONDS);
+    static final CloseableHttpClient client;
+    static {
+      pool.setMaxTotal(MAX_CONNECTIONS);
+      pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+      pool.setValidateAfterInactivity(2000);
+      client = HttpClients.custom().setConnectionManager(pool)
+          .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+              .setConnectionRequestTimeout(CONNECT_TIMEOUT_MILLIS).setSocketTimeout(READ_TIMEOUT_MILLIS).build())
+          .build();
+    }
+  }
+
+  private static class Tracked {
+    final Client client;
+    final LongAdder requests = new LongAdder();
+
+    Tracked(Client client) {
+      this.client = client;
+      client.register((ClientRequestFilter) ctx -> requests.increment());
+    }
+  }
+
+  private static final Map<String, Tracked> jaxrsClients = new ConcurrentHashMap<>();
+
+  /**
+   * GET the url through the shared pool.
+   */
+  public static byte[] fetch(String url) throws IOException {
+    try (CloseableHttpResponse response = Http.client.execute(new HttpGet(url))) {
+      HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw new IOException("Unable to load " + url);
+      }
+      // reading it all releases the connection back to the pool.
+      return EntityUtils.toByteArray(entity);
+    }
+  }
+
+  /**
+   * A jaxrs client using the 'DefaultSSLSettings' from server.xml.
+   */
+  public static Client plainClient() {
+    return jaxrsClients.computeIfAbsent("plain", k -> new Tracked(newClient())).client;
+  }
+
+  /**
+   * As {@link #plainClient()}, signing each request as the given id.
+   */
+  public static Client signedClient(String id, String secret) {
+    return jaxrsClients.computeIfAbsent("signed:" + id, k -> {
+      Tracked t = new Tracked(newClient());
+      t.client.register(new SignedClientRequestFilter(id, secret));
+      return t;
+    }).client;
+  }
+
+  private static Client newClient() {
+    return ClientBuilder.newBuilder().property("com.ibm.ws.jaxrs.client.ssl.config", "DefaultSSLSettings")
+        .property("com.ibm.ws.jaxrs.client.disableCNCheck", true)
+        .property("com.ibm.ws.jaxrs.client.connection.timeout", String.valueOf(CONNECT_TIMEOUT_MILLIS))
+        .property("com.ibm.ws.jaxrs.client.receive.timeout", String.valueOf(READ_TIMEOUT_MILLIS)).build();
+  }
+
+  public static JsonObject toJson() {
+    JsonObjectBuilder jaxrs = Json.createObjectBuilder();
+    for (Map.Entry<String, Tracked> e : jaxrsClients.entrySet()) {
+      jaxrs.add(e.getKey(), Json.createObjectBuilder().add("requests", e.getValue().requests.sum()));
+    }
+    PoolStats stats = Http.pool.getTotalStats();
+    return Json.createObjectBuilder()
+        .add("http",
+            Json.createObjectBuilder().add("leased", stats.getLeased()).add("available", stats.getAvailable())
+                .add("pending", stats.getPending()).add("max", stats.getMax())
+                .add("routes", Http.pool.getRoutes().size()))
+        .add("jaxrs", jaxrs).build();
+  }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * The story yaml, kept in a local file (ROOM_STORY_CACHE) so the room can start
+ * from it without waiting on the network. Only a start with no cached copy
+ * fetches before building the rooms, otherwise the fetch happens in the
+ * background, and a changed story is picked up at the next restart (which
+ * /ydebug reload triggers, after storing what it fetched here).
+ */
+public class StoryCache {
+  static final String STORY_URL = Config.getString(Constants.ENV_STORY_URL,
+      "https://raw.githubusercontent.com/suehle/gameon-yaml-driven-room/main/roomyaml-all-br");
+  static final File CACHE_FILE = new File(Config.getString(Constants.ENV_STORY_CACHE,
+      new File(System.getProperty("java.io.tmpdir"), "gameon-room-story.yaml").getPath()));
+
+  /**
+   * The cached story if there is one, refreshing it in the background, else
+   * the story fetched now.
+   */
+  public static byte[] load() throws IOException {
+    if (CACHE_FILE.isFile()) {
+      try {
+        byte[] cached = Files.readAllBytes(CACHE_FILE.toPath());
+        refreshInBackground(cached);
+        return cached;
+      } catch (IOException e) {
+        Log.log(Level.WARNING, StoryCache.class, "Unable to read cached story {0}, fetching it: {1}", CACHE_FILE, e);
+      }
+    }
+    byte[] fetched = SharedClients.fetch(STORY_URL);
+    store(fetched);
+    return fetched;
+  }
+
+  public static byte[] fetch() throws IOException {
+    return SharedClients.fetch(STORY_URL);
+  }
+
+  /**
+   * Replace the cached story, atomically so a start never reads half of one.
+   */
+  public static void store(byte[] story) {
+    try {
+      File dir = CACHE_FILE.getAbsoluteFile().getParentFile();
+      Files.createDirectories(dir.toPath());
+      Path tmp = Files.createTempFile(dir.toPath(), CACHE_FILE.getName(), ".tmp");
+      Files.write(tmp, story);
+      Files.move(tmp, CACHE_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Log.log(Level.WARNING, StoryCache.class, "Unable to cache story to {0}: {1}", CACHE_FILE, e);
+    }
+  }
+
+  private static void refreshInBackground(byte[] cached) {
+    Runnable refresh = () -> {
+      try {
+        byte[] fetched = fetch();
+        if (!Arrays.equals(cached, fetched)) {
+          store(fetched);
+          Log.log(Level.INFO, StoryCache.class,
+              "Story at {0} has changed, it will be used from the next restart (or /ydebug reload)", STORY_URL);
+        }
+      } catch (IOException e) {
+        Log.log(Level.WARNING, StoryCache.class,
+            "Unable to refresh story from {0}, carrying on with the cached one: {1}", STORY_URL, e);
+      }
+    };
+    try {
+      ExecutorService executor = (ManagedExecutorService) new InitialContext().lookup("concurrent/execSvc");
+      executor.submit(refresh);
+    } catch (NamingException | RejectedExecutionException e) {
+      Log.log(Level.WARNING, StoryCache.class, "Unable to refresh story in the background", e);
+    }
+  }
+}
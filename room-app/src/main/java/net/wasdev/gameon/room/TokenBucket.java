@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as the single time at which the bucket will be
+ * full again. Taking a token moves that time one refill interval later, and is
+ * refused if it would then be more than a burst's worth of intervals away.
+ */
+public class TokenBucket {
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final AtomicLong fullAt;
+
+  /**
+   * @param burst tokens the bucket holds when full
+   * @param perSecond tokens added each second, 0 or less for no limit
+   */
+  public TokenBucket(int burst, double perSecond) {
+    this.intervalNanos = perSecond > 0 ? (long) (1_000_000_000L / perSecond) : 0;
+    this.burstNanos = Math.max(burst, 1) * intervalNanos;
+    this.fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  public boolean tryTake() {
+    if (intervalNanos == 0) {
+      return true;
+    }
+    long now = System.nanoTime();
+    while (true) {
+      long current = fullAt.get();
+      long next = (current - now > 0 ? current : now) + intervalNanos;
+      if (next - now > burstNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+}
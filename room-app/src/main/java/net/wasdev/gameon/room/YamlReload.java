@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.ozzy.model.Room;
+import org.ozzy.model.Story;
+import org.ozzy.runtime.RoomEngine;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+import net.wasdev.gameon.room.LifecycleManager.SessionRoomResponseProcessor;
+
+/**
+ * The /ydebug reload job: fetch the story yaml, validate every room, and
+ * restart the app to pick it up. Runs on the managed executor, reporting each
+ * step to the player who asked, and only one runs at a time, however many ask.
+ */
+public class YamlReload implements Runnable {
+  private static final AtomicBoolean running = new AtomicBoolean(false);
+
+  private final SessionRoomResponseProcessor srrp;
+  private final String userid;
+
+  private YamlReload(SessionRoomResponseProcessor srrp, String userid) {
+    this.srrp = srrp;
+    this.userid = userid;
+  }
+
+  /**
+   * @return false if a reload is already running, or couldn't be started
+   */
+  public static boolean start(SessionRoomResponseProcessor srrp, String userid) {
+    if (!running.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      ExecutorService executor = (ManagedExecutorService) new InitialContext().lookup("concurrent/execSvc");
+      executor.submit(new YamlReload(srrp, userid));
+      return true;
+    } catch (NamingException | RejectedExecutionException e) {
+      Log.log(Level.WARNING, YamlReload.class, "Unable to start reload", e);
+      running.set(false);
+      return false;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      progress("DEBUG: Reload Requested.. fetching new yaml");
+      byte[] yaml = StoryCache.fetch();
+      progress("DEBUG: Fetched " + yaml.length + " bytes of yaml, parsing & checking for issues");
+      Story s = parseYaml(new ByteArrayInputStream(yaml));
+
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter(sw);
+      pw.println("DEBUG: ---ooOO[[[ Validating...  ]]]OOoo---\n");
+      for(Room t : s.getRooms()) {
+        //verification step for testing.
+        RoomEngine.verifyRoom(s.getVars(), s.getCommands(), t, pw);
+      }
+      pw.println("");
+      pw.flush();
+      srrp.playerEvent(userid, sw.toString(), null);
+      // the restart builds the rooms from the cache.
+      StoryCache.store(yaml);
+      srrp.playerEvent(userid, "DEBUG: Triggering **full app restart**.. this will take a mo.. ", "The world is being rebooted, please wait.");
+      triggerWebAppReload();
+    } catch (Exception e) {
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter(sw);
+      e.printStackTrace(pw);
+      srrp.playerEvent(userid, "DEBUG: Error processing yaml: \n\n  "+sw.toString(), null);
+    } finally {
+      running.set(false);
+    }
+  }
+
+  private void progress(String message) {
+    srrp.playerEvent(userid, message, null);
+  }
+
+  private void triggerWebAppReload() {
+    System.out.println("poking file for reload");
+    try {
+      System.out.println("using runtime exec");
+      Process process = new ProcessBuilder("touch", "/opt/ol/wlp/usr/servers/defaultServer/apps/room-app.war")
+          .redirectErrorStream(true).start();
+
+      // read the output here rather than on another thread, touch says little if anything.
+      try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+        output.lines().forEach(System.out::println);
+      }
+      if (process.waitFor(30, TimeUnit.SECONDS)) {
+        System.out.println("exec code " + process.exitValue());
+      } else {
+        process.destroy();
+        progress("DEBUG: Restart trigger timed out, the world may not reboot");
+      }
+    } catch (Exception e) {
+      System.out.println("poke failure during reload.. ");
+      e.printStackTrace();
+      progress("DEBUG: Failed to trigger restart: " + e);
+    }
+  }
+
+  private Story parseYaml(InputStream inputStream) {
+    Constructor c = new Constructor(Story.class);
+    Yaml yaml = new Yaml(c);
+    Story s = yaml.load(inputStream);
+    return s;
+  }
+}
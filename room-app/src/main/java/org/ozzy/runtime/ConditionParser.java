@@ -1,10 +1,28 @@
 package org.ozzy.runtime;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import net.wasdev.gameon.room.Config;
+import net.wasdev.gameon.room.Constants;
 
 public class ConditionParser {
 
+  /**
+   * How compiled conditions run: "interpreter" walks the node tree, "handles"
+   * folds it into a single MethodHandle chain the JIT can inline through.
+   */
+  static final boolean USE_HANDLES = "handles"
+      .equalsIgnoreCase(Config.getString(Constants.ENV_CONDITION_BACKEND, "interpreter"));
+
   public static class ParseException extends Exception {
     private static final long serialVersionUID = 1L;
 
@@ -21,17 +39,65 @@ public class ConditionParser {
     String lhs;
     String operator;
     String rhs;
+    // the literals of the [a, b, c] list rhs came from, parsed once, null for any other rhs.
+    Set<String> members;
 
     boolean evaluate() {
-      if ("==".equals(operator)) {
+      if (IN.equals(operator)) {
+        return members.contains(lhs);
+      } else if ("==".equals(operator)) {
         return lhs.equals(rhs);
       } else if ("!=".equals(operator)) {
         return !lhs.equals(rhs);
+      } else if (operator != null) {
+        Long l = number(lhs);
+        Long r = number(rhs);
+        return l != null && r != null && order(l, r, operator);
       }
       return false;
     }
   }
 
+  static final String IN = "in";
+
+  // the literals of an [a, b, "c d"] list, without the brackets.
+  static Set<String> members(String list) {
+    Set<String> result = new HashSet<String>();
+    for (String item : list.split(",")) {
+      String text = item.trim();
+      if (text.length() >= 2 && ((text.startsWith("\"") && text.endsWith("\""))
+          || (text.startsWith("'") && text.endsWith("'")))) {
+        text = text.substring(1, text.length() - 1);
+      }
+      result.add(text);
+    }
+    return Collections.unmodifiableSet(result);
+  }
+
+  // whole numbers only, null for anything else.
+  static Long number(String text) {
+    try {
+      return Long.valueOf(text.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  static boolean order(long l, long r, String operator) {
+    switch (operator) {
+      case ">":
+        return l > r;
+      case "<":
+        return l < r;
+      case ">=":
+        return l >= r;
+      case "<=":
+        return l <= r;
+      default:
+        return false;
+    }
+  }
+
   private static class AndExpression extends Expression {
     Expression a;
     Expression b;
@@ -87,7 +153,14 @@ public class ConditionParser {
         }
         case ' ': {
           // end of block
-          if (currentToken != null) {
+          if (IN.equals(currentToken) && eval.lhs != null && eval.operator == null) {
+            eval.operator = IN;
+            currentToken = null;
+          } else if (currentToken != null) {
+            if (IN.equals(eval.operator) && eval.members == null) {
+              throw new ParseException(
+                  "ERROR: expression [" + state.expression + "] in must be followed by a list, Eg. 'a in [b, c]'");
+            }
             if (eval.lhs == null) {
               eval.lhs = currentToken;
               currentToken = null;
@@ -176,6 +249,55 @@ public class ConditionParser {
           }
           break;
         }
+        case '[': {
+          if (IN.equals(currentToken) && eval.lhs != null && eval.operator == null) {
+            eval.operator = IN;
+            currentToken = null;
+          }
+          if (!IN.equals(eval.operator) || currentToken != null) {
+            // just part of a token
+            currentToken = currentToken == null ? "[" : currentToken + "[";
+            break;
+          }
+          int end = state.expression.indexOf(']', state.idx);
+          if (end < 0) {
+            throw new ParseException(
+                "ERROR: expression [" + state.expression + "] unmatched [ in list. Eg. 'a in [b, c'");
+          }
+          currentToken = state.expression.substring(state.idx + 1, end);
+          for (String member : currentToken.split(",", -1)) {
+            if (member.trim().isEmpty()) {
+              throw new ParseException(
+                  "ERROR: expression [" + state.expression + "] empty entry in list. Eg. 'a in [b, , c]'");
+            } else if (member.contains("{")) {
+              throw new ParseException("ERROR: expression [" + state.expression
+                  + "] lists can only hold literals, found '" + member.trim() + "'");
+            }
+          }
+          eval.members = members(currentToken);
+          state.idx = end;
+          break;
+        }
+        case '<':
+        case '>': {
+          if (eval.lhs == null) {
+            eval.lhs = currentToken;
+            currentToken = "";
+          }
+          if (eval.lhs == null) {
+            throw new ParseException(
+                "ERROR: expression [" + state.expression + "] missing lhs for " + next + ", Eg, you cannot do '" + next
+                    + "b'");
+          }
+          // <= or >= maybe
+          if (state.expression.charAt(state.idx + 1) == '=') {
+            eval.operator = next + "=";
+            state.idx++;
+          } else {
+            eval.operator = String.valueOf(next);
+          }
+          break;
+        }
         case '&': {
           // &&
           if (state.expression.length() > (state.idx)) {
@@ -245,6 +367,518 @@ public class ConditionParser {
   public ConditionParser() {
   }
 
+  /**
+   * Key of {@link Condition#requiredValues()} for the command's argument, the
+   * other keys are the names of state vars.
+   */
+  public static final String ARG = "{arg}";
+
+  /**
+   * A condition parsed once for a room, with each operand resolved ahead of
+   * time to what it reads: the command's argument, the player's id or name, a
+   * state var, or a literal.
+   * <p>
+   * {@link ConditionParser#evaluate} swaps values into the text of each operand,
+   * so an operand can end up meaning something else (a literal holding the name
+   * of a state var, an argument holding a template). Wherever that could happen
+   * the condition is evaluated that way instead, so the answer is always the
+   * same as it would have been.
+   * <p>
+   * Results are cached, keyed by the built-ins the condition reads, until the
+   * version of one of the state slots it reads moves on. The room bumps a
+   * slot's version whenever it sets that var.
+   */
+  public static class Condition {
+    private static final int CACHE_LIMIT = 64;
+
+    private final String source;
+    // null when only the textual evaluation will do.
+    private final Node root;
+    // (Map, String args, String id, String name) boolean, when running on handles.
+    private final MethodHandle handle;
+    private final Set<String> varsRead = new HashSet<String>();
+    private boolean readsArg;
+    private boolean readsId;
+    private boolean readsName;
+
+    private final int[] slotsRead;
+    // guarded by cache.
+    private final long[] seenVersions;
+    private final Map<String, Boolean> cache = new HashMap<String, Boolean>();
+
+    private Condition(String source, Expression parsed, Map<String, Integer> slotByVar, boolean useHandles) {
+      this.source = source;
+      this.root = parsed == null ? null : compile(parsed, slotByVar.keySet());
+      this.handle = root != null && useHandles ? root.handle() : null;
+      this.slotsRead = new int[varsRead.size()];
+      int i = 0;
+      for (String var : varsRead) {
+        slotsRead[i++] = slotByVar.get(var);
+      }
+      this.seenVersions = new long[slotsRead.length];
+      Arrays.fill(seenVersions, -1);
+    }
+
+    private Node compile(Expression e, Collection<String> stateVars) {
+      if (e instanceof Evaluation) {
+        Evaluation ev = (Evaluation) e;
+        if (IN.equals(ev.operator)) {
+          Operand lhs = operand(ev.lhs, stateVars);
+          return lhs == null || ev.members == null ? null : new Member(lhs, ev.members);
+        }
+        Operand lhs = operand(ev.lhs, stateVars);
+        Operand rhs = operand(ev.rhs, stateVars);
+        if (lhs == null || rhs == null) {
+          return null;
+        }
+        if ("==".equals(ev.operator) || "!=".equals(ev.operator)) {
+          return new Compare(lhs, rhs, "==".equals(ev.operator));
+        }
+        if (Order.OPERATORS.contains(ev.operator)) {
+          return new Order(lhs, rhs, ev.operator);
+        }
+        return new Never();
+      } else if (e instanceof AndExpression || e instanceof OrExpression) {
+        boolean and = e instanceof AndExpression;
+        Expression a = and ? ((AndExpression) e).a : ((OrExpression) e).a;
+        Expression b = and ? ((AndExpression) e).b : ((OrExpression) e).b;
+        Node na = a == null ? null : compile(a, stateVars);
+        Node nb = b == null ? null : compile(b, stateVars);
+        if (na == null || nb == null) {
+          return null;
+        }
+        return and ? new And(na, nb) : new Or(na, nb);
+      }
+      return null;
+    }
+
+    // mirrors substituteVars, null if the substitution could change what the operand means.
+    private Operand operand(String token, Collection<String> stateVars) {
+      if (token == null) {
+        return null;
+      }
+      String text = token.trim();
+      if ((text.startsWith("\"") && text.endsWith("\"")) || (text.startsWith("'") && text.endsWith("'"))) {
+        if (text.length() < 2) {
+          return null;
+        }
+        text = text.substring(1, text.length() - 1);
+      }
+      for (String var : stateVars) {
+        if (text.contains(var) && !text.equals(var)) {
+          return null;
+        }
+      }
+      if (stateVars.contains(text) && text.indexOf('{') < 0) {
+        varsRead.add(text);
+        return new Operand(Operand.VAR, text);
+      }
+      switch (text) {
+        case "{arg}":
+          readsArg = true;
+          return new Operand(Operand.ARG, text);
+        case "{id}":
+          readsId = true;
+          return new Operand(Operand.ID, text);
+        case "{name}":
+          readsName = true;
+          return new Operand(Operand.NAME, text);
+        default:
+          return text.indexOf('{') < 0 ? new Operand(Operand.LITERAL, text) : null;
+      }
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    /**
+     * @param dirtyVars state vars whose current value holds a template or the
+     *          name of a state var, and so would be changed by substitution
+     * @param versions per slot, bumped each time the var in that slot is set
+     */
+    public boolean evaluate(Map<String, Object> stateById, Set<String> dirtyVars, long[] versions, String args,
+        String playerId, String playerName) {
+      if (args == null)
+        args = "";
+      if (root == null || (readsArg && args.indexOf('{') >= 0)
+          || (readsId && (playerId == null || playerId.indexOf('{') >= 0))
+          || (readsName && (playerName == null || playerName.indexOf('{') >= 0))
+          || !cleanVars(stateById, dirtyVars)) {
+        return new ConditionParser().evaluate(source, stateById, args, playerId, playerName);
+      }
+      String key = cacheKey(args, playerId, playerName);
+      // the versions this result will be good for, taken before reading any state:
+      // the room sets a var before bumping its version, so a result can only be
+      // newer than these, never older.
+      long[] read = new long[slotsRead.length];
+      for (int i = 0; i < slotsRead.length; i++) {
+        read[i] = versions[slotsRead[i]];
+      }
+      synchronized (cache) {
+        if (!Arrays.equals(seenVersions, read)) {
+          cache.clear();
+          System.arraycopy(read, 0, seenVersions, 0, read.length);
+        }
+        Boolean cached = cache.get(key);
+        if (cached != null) {
+          return cached;
+        }
+      }
+      Object event = RoomEvents.beginCondition();
+      boolean result = evaluateCompiled(stateById, args, playerId, playerName);
+      RoomEvents.commitCondition(event, source, result);
+      synchronized (cache) {
+        // another caller has seen the vars move on since, this result may be stale for them.
+        if (Arrays.equals(seenVersions, read)) {
+          if (cache.size() >= CACHE_LIMIT) {
+            cache.clear();
+          }
+          cache.put(key, result);
+        }
+      }
+      return result;
+    }
+
+    // the compiled tree on its own, without the cache or any of the checks for falling back.
+    boolean evaluateCompiled(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      if (handle == null) {
+        return root.evaluate(stateById, args, playerId, playerName);
+      }
+      try {
+        return (boolean) handle.invokeExact(stateById, args, playerId, playerName);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+    }
+
+    private String cacheKey(String args, String playerId, String playerName) {
+      if (!readsId && !readsName) {
+        return readsArg ? args : "";
+      }
+      return (readsArg ? args : "") + '\u0000' + (readsId ? playerId : "") + '\u0000'
+          + (readsName ? playerName : "");
+    }
+
+    private boolean cleanVars(Map<String, Object> stateById, Set<String> dirtyVars) {
+      for (String var : varsRead) {
+        if (stateById.get(var) == null || dirtyVars.contains(var)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * The values an operand must have for the condition to hold, keyed by
+     * {@link #ARG} or state var name, eg, {a: {1, 2}} for
+     * <code>a=="1" || a=="2"</code>. Operands the condition doesn't pin down
+     * to a set of literals are left out.
+     */
+    public Map<String, Set<String>> requiredValues() {
+      return root == null ? Collections.<String, Set<String>> emptyMap() : root.requiredValues();
+    }
+  }
+
+  /**
+   * @param slotByVar the room's state vars, and the slot each one's version is
+   *          kept in
+   */
+  public static Condition compile(String expression, Map<String, Integer> slotByVar) {
+    return compile(expression, slotByVar, USE_HANDLES);
+  }
+
+  static Condition compile(String expression, Map<String, Integer> slotByVar, boolean useHandles) {
+    Expression parsed = null;
+    try {
+      parsed = new ConditionParser().parse(new State(expression));
+    } catch (ParseException pe) {
+      // left for evaluate to report, as it always has.
+    }
+    return new Condition(expression, parsed, slotByVar, useHandles);
+  }
+
+  private static class Operand {
+    static final int LITERAL = 0;
+    static final int ARG = 1;
+    static final int ID = 2;
+    static final int NAME = 3;
+    static final int VAR = 4;
+
+    final int kind;
+    final String text;
+
+    Operand(int kind, String text) {
+      this.kind = kind;
+      this.text = text;
+    }
+
+    String value(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      switch (kind) {
+        case ARG:
+          return args;
+        case ID:
+          return playerId;
+        case NAME:
+          return playerName;
+        case VAR:
+          return stateById.get(text).toString();
+        default:
+          return text;
+      }
+    }
+
+    // (Map, String args, String id, String name) String
+    MethodHandle handle() {
+      switch (kind) {
+        case ARG:
+        case ID:
+        case NAME:
+          return Handles.pick(kind);
+        case VAR:
+          return MethodHandles.dropArguments(
+              MethodHandles.filterReturnValue(MethodHandles.insertArguments(Handles.MAP_GET, 1, text),
+                  Handles.TO_STRING),
+              1, String.class, String.class, String.class);
+        default:
+          return MethodHandles.dropArguments(MethodHandles.constant(String.class, text), 0, Handles.PARAMS);
+      }
+    }
+
+    // the operand as a whole number, without going through text for numeric state.
+    Long number(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      if (kind == VAR) {
+        Object value = stateById.get(text);
+        if (value instanceof Long || value instanceof Integer) {
+          return ((Number) value).longValue();
+        }
+      }
+      return ConditionParser.number(value(stateById, args, playerId, playerName));
+    }
+
+    // the key this operand is indexed under, when compared with a literal.
+    String selector() {
+      return kind == ARG ? ConditionParser.ARG : kind == VAR ? text : null;
+    }
+  }
+
+  private static abstract class Node {
+    abstract boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName);
+
+    // (Map, String args, String id, String name) boolean
+    abstract MethodHandle handle();
+
+    Map<String, Set<String>> requiredValues() {
+      return new HashMap<String, Set<String>>();
+    }
+  }
+
+  private static class Compare extends Node {
+    final Operand lhs;
+    final Operand rhs;
+    final boolean equal;
+
+    Compare(Operand lhs, Operand rhs, boolean equal) {
+      this.lhs = lhs;
+      this.rhs = rhs;
+      this.equal = equal;
+    }
+
+    boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      String l = lhs.value(stateById, args, playerId, playerName);
+      String r = rhs.value(stateById, args, playerId, playerName);
+      return equal == l.equals(r);
+    }
+
+    MethodHandle handle() {
+      MethodHandle both = MethodHandles.collectArguments(MethodHandles.collectArguments(Handles.EQUALS, 0, lhs.handle()),
+          Handles.PARAMS.length, rhs.handle());
+      MethodHandle eq = MethodHandles.permuteArguments(both, Handles.TYPE, 0, 1, 2, 3, 0, 1, 2, 3);
+      return equal ? eq : MethodHandles.filterReturnValue(eq, Handles.NOT);
+    }
+
+    Map<String, Set<String>> requiredValues() {
+      Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+      if (equal) {
+        if (lhs.selector() != null && rhs.kind == Operand.LITERAL) {
+          result.put(lhs.selector(), new HashSet<String>(Collections.singleton(rhs.text)));
+        } else if (rhs.selector() != null && lhs.kind == Operand.LITERAL) {
+          result.put(rhs.selector(), new HashSet<String>(Collections.singleton(lhs.text)));
+        }
+      }
+      return result;
+    }
+  }
+
+  private static class Member extends Node {
+    final Operand lhs;
+    final Set<String> members;
+
+    Member(Operand lhs, Set<String> members) {
+      this.lhs = lhs;
+      this.members = members;
+    }
+
+    boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      return members.contains(lhs.value(stateById, args, playerId, playerName));
+    }
+
+    MethodHandle handle() {
+      return MethodHandles.collectArguments(Handles.SET_CONTAINS.bindTo(members)
+          .asType(MethodType.methodType(boolean.class, String.class)), 0, lhs.handle());
+    }
+
+    Map<String, Set<String>> requiredValues() {
+      Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+      if (lhs.selector() != null) {
+        result.put(lhs.selector(), new HashSet<String>(members));
+      }
+      return result;
+    }
+  }
+
+  private static class Order extends Node {
+    static final Set<String> OPERATORS = new HashSet<String>(Arrays.asList(">", "<", ">=", "<="));
+
+    final Operand lhs;
+    final Operand rhs;
+    final String operator;
+
+    Order(Operand lhs, Operand rhs, String operator) {
+      this.lhs = lhs;
+      this.rhs = rhs;
+      this.operator = operator;
+    }
+
+    boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      Long l = lhs.number(stateById, args, playerId, playerName);
+      Long r = rhs.number(stateById, args, playerId, playerName);
+      return l != null && r != null && order(l, r, operator);
+    }
+
+    MethodHandle handle() {
+      return Handles.NODE_EVALUATE.bindTo(this);
+    }
+  }
+
+  private static class Never extends Node {
+    boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      return false;
+    }
+
+    MethodHandle handle() {
+      return Handles.FALSE;
+    }
+  }
+
+  private static class And extends Node {
+    final Node a;
+    final Node b;
+
+    And(Node a, Node b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      return a.evaluate(stateById, args, playerId, playerName) && b.evaluate(stateById, args, playerId, playerName);
+    }
+
+    MethodHandle handle() {
+      return MethodHandles.guardWithTest(a.handle(), b.handle(), Handles.FALSE);
+    }
+
+    // both sides hold, so each side's requirements do, and where both constrain an operand, both sets do.
+    Map<String, Set<String>> requiredValues() {
+      Map<String, Set<String>> result = a.requiredValues();
+      for (Map.Entry<String, Set<String>> e : b.requiredValues().entrySet()) {
+        Set<String> existing = result.get(e.getKey());
+        if (existing == null) {
+          result.put(e.getKey(), e.getValue());
+        } else {
+          existing.retainAll(e.getValue());
+        }
+      }
+      return result;
+    }
+  }
+
+  private static class Or extends Node {
+    final Node a;
+    final Node b;
+
+    Or(Node a, Node b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    boolean evaluate(Map<String, Object> stateById, String args, String playerId, String playerName) {
+      return a.evaluate(stateById, args, playerId, playerName) || b.evaluate(stateById, args, playerId, playerName);
+    }
+
+    MethodHandle handle() {
+      return MethodHandles.guardWithTest(a.handle(), Handles.TRUE, b.handle());
+    }
+
+    // either side may hold, so only operands both constrain are, to either's values.
+    Map<String, Set<String>> requiredValues() {
+      Map<String, Set<String>> ra = a.requiredValues();
+      Map<String, Set<String>> rb = b.requiredValues();
+      ra.keySet().retainAll(rb.keySet());
+      for (Map.Entry<String, Set<String>> e : ra.entrySet()) {
+        e.getValue().addAll(rb.get(e.getKey()));
+      }
+      return ra;
+    }
+  }
+
+  // building blocks for Node.handle.
+  private static class Handles {
+    static final Class<?>[] PARAMS = { Map.class, String.class, String.class, String.class };
+    static final MethodType TYPE = MethodType.methodType(boolean.class, PARAMS);
+    static final MethodHandle MAP_GET;
+    static final MethodHandle TO_STRING;
+    static final MethodHandle EQUALS;
+    static final MethodHandle NOT;
+    static final MethodHandle SET_CONTAINS;
+    // for nodes with no handle of their own.
+    static final MethodHandle NODE_EVALUATE;
+    static final MethodHandle TRUE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0,
+        PARAMS);
+    static final MethodHandle FALSE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0,
+        PARAMS);
+
+    static {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      try {
+        MAP_GET = lookup.findVirtual(Map.class, "get", MethodType.methodType(Object.class, Object.class))
+            .asType(MethodType.methodType(Object.class, Map.class, String.class));
+        TO_STRING = lookup.findVirtual(Object.class, "toString", MethodType.methodType(String.class));
+        EQUALS = lookup.findVirtual(String.class, "equals", MethodType.methodType(boolean.class, Object.class))
+            .asType(MethodType.methodType(boolean.class, String.class, String.class));
+        NOT = lookup.findStatic(Handles.class, "not", MethodType.methodType(boolean.class, boolean.class));
+        SET_CONTAINS = lookup.findVirtual(Set.class, "contains", MethodType.methodType(boolean.class, Object.class));
+        NODE_EVALUATE = lookup.findVirtual(Node.class, "evaluate", TYPE);
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    static boolean not(boolean b) {
+      return !b;
+    }
+
+    // the String parameter at 1 + kind - Operand.ARG, ignoring the rest.
+    static MethodHandle pick(int kind) {
+      int idx = 1 + kind - Operand.ARG;
+      MethodHandle h = MethodHandles.identity(String.class);
+      h = MethodHandles.dropArguments(h, 0, Arrays.copyOfRange(PARAMS, 0, idx));
+      return MethodHandles.dropArguments(h, idx + 1, Arrays.copyOfRange(PARAMS, idx + 1, PARAMS.length));
+    }
+  }
+
   // swap in state/var values to enable comparisons.
   private String substituteVars(String exp, Map<String, Object> stateById, String args, String playerId,
       String playerName) {
@@ -280,8 +914,11 @@ public class ConditionParser {
     if (expression instanceof Evaluation) {
       Evaluation e = new Evaluation();
       e.operator = ((Evaluation) expression).operator;
+      e.members = ((Evaluation) expression).members;
       e.lhs = substituteVars(((Evaluation) expression).lhs, stateById, args, playerId, playerName);
-      e.rhs = substituteVars(((Evaluation) expression).rhs, stateById, args, playerId, playerName);
+      // lists only hold literals.
+      e.rhs = IN.equals(e.operator) ? ((Evaluation) expression).rhs
+          : substituteVars(((Evaluation) expression).rhs, stateById, args, playerId, playerName);
 
       if (e.lhs.contains("{")) {
         throw new ParseException(
@@ -318,6 +955,7 @@ public class ConditionParser {
       return true;
     }
 
+    Object event = RoomEvents.beginCondition();
     State s = new State(expression);
     try {
       Expression e = parse(s);
@@ -325,7 +963,9 @@ public class ConditionParser {
       // expression is complete, but still templatized / holding var references.
       e = copyExpressionAndFillInVars(e, stateById, args, playerId, playerName);
 
-      return e.evaluate();
+      boolean result = e.evaluate();
+      RoomEvents.commitCondition(event, expression, result);
+      return result;
     } catch (ParseException pe) {
       System.out.println("ERROR: parsing: " + expression);
       throw new RuntimeException(pe);
@@ -3,19 +3,31 @@ package org.ozzy.runtime;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.kafka.common.utils.CopyOnWriteMap;
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
 import org.ozzy.model.Action;
 import org.ozzy.model.Command;
 import org.ozzy.model.Item;
 import org.ozzy.model.Room;
 
 import net.wasdev.gameon.room.Constants;
+import net.wasdev.gameon.room.LoadReport;
 import net.wasdev.gameon.room.LifecycleManager.Holodeck;
+import net.wasdev.gameon.room.LifecycleManager.SessionRoomResponseProcessor;
 
 public class RoomEngine {
   Map<String, Object> globalVars;
@@ -28,8 +40,17 @@ public class RoomEngine {
 
   public Map<String, CommandHandler> commandHandlers;
   public Map<String, Object> stateById;
+  // state vars whose value holds a template or another var's name, see ConditionParser.Condition.
+  private final Set<String> dirtyVars = new HashSet<String>();
+  // each state var's slot, and how many times the var in each slot has been set.
+  private final Map<String, Integer> slotByVar = new HashMap<String, Integer>();
+  private long[] versions;
   public Map<ActionFingerprint, Integer> actionMap = new HashMap<ActionFingerprint, Integer>();
 
+  // location content only depends on the room & story, so it is built once per engine, and
+  // thrown away with the engine when the story is reloaded.
+  private volatile String locationJson;
+
   public String getId() {
     return Constants.ROOM_ID+"."+groupId;
   }
@@ -121,9 +142,184 @@ public class RoomEngine {
     String command;
     List<Action> actions = new ArrayList<Action>();
 
+    // filled in by compile(), once the room's state vars are known.
+    ConditionParser.Condition[] conditions;
+    // indexes into actions, in order.
+    int[] all;
+    int[] unconstrained;
+    Selector[] selectors;
+
     public CommandHandler(String command) {
       this.command = command;
     }
+
+    /**
+     * Compile each action's condition, and index the actions whose condition
+     * only holds for given values of the argument, or of a state var, by those
+     * values. Most conditions are of the form {arg}=="north" || {arg}=="n", so
+     * dispatch only need evaluate the few that can match.
+     */
+    void compile(Map<String, Integer> slotByVar) {
+      conditions = new ConditionParser.Condition[actions.size()];
+      all = new int[actions.size()];
+      List<Integer> free = new ArrayList<Integer>();
+      Map<String, Map<String, List<Integer>>> bySelector = new TreeMap<String, Map<String, List<Integer>>>();
+      Map<String, List<Integer>> membersBySelector = new HashMap<String, List<Integer>>();
+      for (int i = 0; i < actions.size(); i++) {
+        all[i] = i;
+        String condition = actions.get(i).getCondition();
+        if (condition == null || condition.trim().equals("") || condition.trim().equals("unmatched")) {
+          free.add(i);
+          continue;
+        }
+        conditions[i] = ConditionParser.compile(condition, slotByVar);
+        Map<String, Set<String>> required = conditions[i].requiredValues();
+        String selector = required.containsKey(ConditionParser.ARG) ? ConditionParser.ARG
+            : required.isEmpty() ? null : new TreeSet<String>(required.keySet()).first();
+        if (selector == null) {
+          free.add(i);
+          continue;
+        }
+        Map<String, List<Integer>> byValue = bySelector.computeIfAbsent(selector,
+            k -> new HashMap<String, List<Integer>>());
+        for (String value : required.get(selector)) {
+          byValue.computeIfAbsent(value, k -> new ArrayList<Integer>()).add(i);
+        }
+        membersBySelector.computeIfAbsent(selector, k -> new ArrayList<Integer>()).add(i);
+      }
+      unconstrained = toArray(free);
+      selectors = new Selector[bySelector.size()];
+      int n = 0;
+      for (Map.Entry<String, Map<String, List<Integer>>> e : bySelector.entrySet()) {
+        Selector sel = new Selector(e.getKey(), toArray(membersBySelector.get(e.getKey())));
+        for (Map.Entry<String, List<Integer>> v : e.getValue().entrySet()) {
+          sel.actionsByValue.put(v.getKey(), toArray(v.getValue()));
+        }
+        selectors[n++] = sel;
+      }
+    }
+
+    /**
+     * The actions that could match, in order: those not indexed, and those
+     * indexed under the current value of the argument or state var.
+     */
+    int[] candidates(Map<String, Object> stateById, Set<String> dirtyVars, String args) {
+      if (selectors.length == 0 || args.indexOf('{') >= 0) {
+        return all;
+      }
+      int[] result = unconstrained;
+      for (Selector sel : selectors) {
+        int[] matched;
+        if (sel.var == null) {
+          matched = sel.actionsByValue.get(args);
+        } else {
+          Object value = stateById.get(sel.var);
+          matched = value == null || dirtyVars.contains(sel.var) ? sel.members
+              : sel.actionsByValue.get(value.toString());
+        }
+        if (matched != null) {
+          result = merge(result, matched);
+        }
+      }
+      return result;
+    }
+  }
+
+  private static class Selector {
+    // null for the argument.
+    final String var;
+    final int[] members;
+    final Map<String, int[]> actionsByValue = new HashMap<String, int[]>();
+
+    Selector(String selector, int[] members) {
+      this.var = ConditionParser.ARG.equals(selector) ? null : selector;
+      this.members = members;
+    }
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] result = new int[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+
+  // union of two ascending, disjoint index lists.
+  private static int[] merge(int[] a, int[] b) {
+    if (a.length == 0) {
+      return b;
+    }
+    if (b.length == 0) {
+      return a;
+    }
+    int[] result = new int[a.length + b.length];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length && j < b.length) {
+      result[k++] = a[i] < b[j] ? a[i++] : b[j++];
+    }
+    while (i < a.length) {
+      result[k++] = a[i++];
+    }
+    while (j < b.length) {
+      result[k++] = b[j++];
+    }
+    return result;
+  }
+
+  // a value substitution would rewrite can't be compared as it stands.
+  private void updateDirty(String var) {
+    Object value = stateById.get(var);
+    String text = value == null ? "" : value.toString();
+    boolean dirty = text.indexOf('{') >= 0;
+    for (String other : stateById.keySet()) {
+      dirty |= text.contains(other);
+    }
+    if (dirty) {
+      dirtyVars.add(var);
+    } else {
+      dirtyVars.remove(var);
+    }
+  }
+
+  /**
+   * State declared in the yaml keeps the type it was declared with: whole
+   * numbers are held as Long, true/false as Boolean, anything else as text.
+   */
+  static Object typed(Object declared) {
+    if (declared instanceof Integer || declared instanceof Long || declared instanceof Short
+        || declared instanceof Byte) {
+      return ((Number) declared).longValue();
+    }
+    return declared;
+  }
+
+  // the value as the type of the var's current value, or null if it isn't one.
+  private static Object coerce(Object current, Object value) {
+    if (current instanceof Long) {
+      return value instanceof Long ? value : ConditionParser.number(value.toString());
+    } else if (current instanceof Boolean) {
+      if (value instanceof Boolean) {
+        return value;
+      }
+      String text = value.toString().trim();
+      return "true".equals(text) ? Boolean.TRUE : "false".equals(text) ? Boolean.FALSE : null;
+    }
+    return value;
+  }
+
+  private boolean setState(String var, Object value) {
+    value = coerce(stateById.get(var), value);
+    if (value == null) {
+      return false;
+    }
+    stateById.put(var, value);
+    updateDirty(var);
+    Integer slot = slotByVar.get(var);
+    if (slot != null) {
+      versions[slot]++;
+    }
+    return true;
   }
 
   public static void verifyRoom(Map<String, Object> globalVars, List<Command> globalCommands, Room room,
@@ -134,14 +330,14 @@ public class RoomEngine {
     }
     if (room.getState() != null) {
       for (Map.Entry<String, Object> kv : room.getState().entrySet()) {
-        stateById.put("room.state." + kv.getKey(), kv.getValue());
+        stateById.put("room.state." + kv.getKey(), typed(kv.getValue()));
       }
     }
     if (room.getItems() != null) {
       for (Item i : room.getItems()) {
         if (i.getState() != null) {
           for (Map.Entry<String, Object> kv : i.getState().entrySet()) {
-            stateById.put("items." + i.getName() + "." + kv.getKey(), kv.getValue());
+            stateById.put("items." + i.getName() + "." + kv.getKey(), typed(kv.getValue()));
           }
         }
       }
@@ -159,6 +355,7 @@ public class RoomEngine {
                 failures.add("[" + a.getCondition() + "] --> " + pe.getMessage());
               }
             }
+            verifyInstructions(a.getDo(), stateById, failures);
           }
         }
       }
@@ -175,6 +372,7 @@ public class RoomEngine {
                 failures.add("[" + a.getCondition() + "] --> " + pe.getMessage());
               }
             }
+            verifyInstructions(a.getDo(), stateById, failures);
           }
         }
       }
@@ -193,6 +391,7 @@ public class RoomEngine {
                     failures.add("[" + a.getCondition() + "] --> " + pe.getMessage());
                   }
                 }
+                verifyInstructions(a.getDo(), stateById, failures);
               }
             }
           }
@@ -210,6 +409,37 @@ public class RoomEngine {
     }
   }
 
+  // set/inc/dec must name a declared var, and literal values must suit its type.
+  private static void verifyInstructions(List<String> instructions, Map<String, Object> stateById,
+      List<String> failures) {
+    if (instructions == null) {
+      return;
+    }
+    for (String i : instructions) {
+      i = i.trim();
+      String op = i.split(" +")[0];
+      if (!i.contains(" ") || (!"set".equals(op) && !"inc".equals(op) && !"dec".equals(op))) {
+        continue;
+      }
+      String parts[] = i.substring(4).split("=");
+      String var = parts[0].trim();
+      String value = parts.length > 1 ? parts[1].trim() : null;
+      Object current = stateById.get(var);
+      if (current == null) {
+        failures.add("[" + i + "] --> " + op + " must refer to an existing var");
+      } else if ("set".equals(op)) {
+        if (value != null && !value.contains("{") && coerce(current, value) == null) {
+          failures.add("[" + i + "] --> '" + value + "' does not match the type " + var + " was declared with");
+        }
+      } else if (!(current instanceof Long)) {
+        failures.add("[" + i + "] --> " + op + " must refer to a numeric var, " + var + " was declared as '"
+            + current + "'");
+      } else if (value != null && !value.contains("{") && ConditionParser.number(value) == null) {
+        failures.add("[" + i + "] --> " + op + " amount must be a whole number");
+      }
+    }
+  }
+
   public RoomEngine(
       Map<String, Object> globalVars, 
       List<Command> globalCommands, 
@@ -348,19 +578,29 @@ public class RoomEngine {
     // add items / room state
     if (room.getState() != null) {
       for (Map.Entry<String, Object> kv : room.getState().entrySet()) {
-        stateById.put("room.state." + kv.getKey(), kv.getValue());
+        stateById.put("room.state." + kv.getKey(), typed(kv.getValue()));
       }
     }
     if (room.getItems() != null) {
       for (Item i : room.getItems()) {
         if (i.getState() != null) {
           for (Map.Entry<String, Object> kv : i.getState().entrySet()) {
-            stateById.put("items." + i.getName() + "." + kv.getKey(), kv.getValue());
+            stateById.put("items." + i.getName() + "." + kv.getKey(), typed(kv.getValue()));
           }
         }
       }
     }
 
+    // now the state vars are all known, compile the conditions.
+    for (String var : stateById.keySet()) {
+      updateDirty(var);
+      slotByVar.put(var, slotByVar.size());
+    }
+    versions = new long[slotByVar.size()];
+    Set<CommandHandler> handlers = new HashSet<CommandHandler>(commandHandlers.values());
+    for (CommandHandler ch : handlers) {
+      ch.compile(slotByVar);
+    }
   }
 
   public String getVersionInfoString() {
@@ -426,7 +666,25 @@ public class RoomEngine {
               System.out.println("ERROR: set must refer to existing var");
             } else {
               String fixed = substituteVarsInOutput(parts[1].trim(), args, playerId, playerName);
-              stateById.put(parts[0].trim(), fixed);
+              if (!setState(parts[0].trim(), fixed)) {
+                System.out.println(
+                    "ERROR: set " + parts[0].trim() + " to '" + fixed + "' does not match the type it was declared with");
+              }
+            }
+          } else if ("inc".equals(parts[0]) || "dec".equals(parts[0])) {
+            String op = parts[0];
+            parts = i.substring(4).split("=");
+            String var = parts[0].trim();
+            Object current = stateById.get(var);
+            Long by = parts.length > 1
+                ? ConditionParser.number(substituteVarsInOutput(parts[1].trim(), args, playerId, playerName))
+                : Long.valueOf(1);
+            if (!(current instanceof Long)) {
+              System.out.println("ERROR: " + op + " must refer to an existing numeric var");
+            } else if (by == null) {
+              System.out.println("ERROR: " + op + " amount must be a whole number");
+            } else {
+              setState(var, "inc".equals(op) ? (Long) current + by : (Long) current - by);
             }
           } else if ("teleportAll".equals(parts[0])) {
             System.out.println("TELEPORT: '" + parts[1] + "'");
@@ -481,11 +739,21 @@ public class RoomEngine {
    * @param playerName
    */
   private void processCommand(CommandHandler ch, String[] parts, String args, String playerId, String playerName) {
-    // identify potential actions..
+    Object event = RoomEvents.beginCommand();
     List<Action> actions = new ArrayList<Action>();
+    try {
+      runCommand(ch, actions, args, playerId, playerName);
+    } finally {
+      RoomEvents.commitCommand(event, groupId, ch.command, ch.actions.size(), actions.size());
+    }
+  }
+
+  private void runCommand(CommandHandler ch, List<Action> actions, String args, String playerId, String playerName) {
+    // identify potential actions..
     List<Action> unmatched = new ArrayList<Action>();
     if (ch.actions != null) {
-      for (Action a : ch.actions) {
+      for (int idx : ch.candidates(stateById, dirtyVars, args)) {
+        Action a = ch.actions.get(idx);
         // if there's no condition, or it's empty string, it's auto approved.
         if (a.getCondition() == null || a.getCondition().trim().equals("")) {
           actions.add(a);
@@ -495,7 +763,7 @@ public class RoomEngine {
             unmatched.add(a);
           } else {
             // implement condition logic ;)
-            if (evaluateCondition(a.getCondition(), args, playerId, playerName)) {
+            if (ch.conditions[idx].evaluate(stateById, dirtyVars, versions, args, playerId, playerName)) {
               actions.add(a);
             }
           }
@@ -533,6 +801,7 @@ public class RoomEngine {
     ActionFingerprint af = new ActionFingerprint(actions);
     if (!actionMap.containsKey(af)) {
       actionMap.put(af, 0);
+      LoadReport.rotationEntryAdded();
     }
     Integer i = actionMap.get(new ActionFingerprint(actions));
 
@@ -653,4 +922,94 @@ public class RoomEngine {
   public Map<String,String> getCommandMap(){
     return this.commandMap;
   }
+
+  /**
+   * The content of the location event for this room, serialized and ready to
+   * send.
+   */
+  public String getLocationJson() {
+    String json = locationJson;
+    if (json == null) {
+      json = buildLocation().toString();
+      locationJson = json;
+    }
+    return json;
+  }
+
+  private JsonObject buildLocation() {
+    Map<String,String> exits = new HashMap<>();
+    exits.put("N","No sign of an exit here...");
+    exits.put("S","Nothing over here either...");
+    exits.put("E","Still no sign of an exit...");
+    exits.put("W","Yet another direction with no exit..");
+
+    if(room.getExits()!=null) {
+      exits.putAll(room.getExits());
+    }
+
+    List<String> items = new ArrayList<>();
+    List<String> inventory = new ArrayList<>();
+    Map<String,String> commands = new TreeMap<>();
+    if(getCommandMap()!=null) {
+      for(Entry<String, String> c : getCommandMap().entrySet()) {
+        commands.put("/"+c.getKey(), c.getValue());
+      }
+    }
+
+    return SessionRoomResponseProcessor.buildLocation(getId(), getName(), "", exits, items, inventory, commands);
+  }
+
+  /**
+   * Current state vars as json, so the room can be carried on elsewhere via
+   * {@link #restoreState(JsonObject)}.
+   */
+  public JsonObject snapshotState() {
+    JsonObjectBuilder state = Json.createObjectBuilder();
+    for (Map.Entry<String, Object> kv : new HashMap<String, Object>(stateById).entrySet()) {
+      Object value = kv.getValue();
+      if (value instanceof Boolean) {
+        state.add(kv.getKey(), (Boolean) value);
+      } else if (value instanceof Integer || value instanceof Long) {
+        state.add(kv.getKey(), ((Number) value).longValue());
+      } else if (value instanceof Number) {
+        state.add(kv.getKey(), ((Number) value).doubleValue());
+      } else if (value != null) {
+        state.add(kv.getKey(), value.toString());
+      }
+    }
+    return state.build();
+  }
+
+  public void restoreState(JsonObject state) {
+    for (Map.Entry<String, JsonValue> kv : state.entrySet()) {
+      // the conditions were compiled against this room's vars, and a snapshot only ever holds those.
+      if (!stateById.containsKey(kv.getKey())) {
+        System.out.println("ERROR: ignoring unknown state var " + kv.getKey());
+        continue;
+      }
+      JsonValue value = kv.getValue();
+      Object restored;
+      switch (value.getValueType()) {
+        case TRUE:
+          restored = Boolean.TRUE;
+          break;
+        case FALSE:
+          restored = Boolean.FALSE;
+          break;
+        case NUMBER:
+          JsonNumber n = (JsonNumber) value;
+          restored = n.isIntegral() ? (Object) n.longValue() : (Object) n.doubleValue();
+          break;
+        case STRING:
+          restored = ((JsonString) value).getString();
+          break;
+        default:
+          restored = null;
+      }
+      if (restored == null || !setState(kv.getKey(), restored)) {
+        System.out.println("ERROR: ignoring state var " + kv.getKey() + " with unexpected value " + value);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,186 @@
+package org.ozzy.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JDK Flight Recorder events for the hot paths of the room, so latency can be
+ * split between command dispatch, condition evaluation, room switches and the
+ * websocket send loops.
+ * <p>
+ * Not every JVM we run on ships jdk.jfr, and the room is built for Java 8, so
+ * nothing here links against it: the event types are defined at runtime through
+ * jdk.jfr.EventFactory, looked up reflectively, and when that isn't there every
+ * event is a no-op. Callers keep the token returned by a begin method and hand
+ * it back to the matching commit, a null token means nothing is being recorded
+ * and costs nothing to commit. Begin only allocates an event while a recording
+ * has the type enabled.
+ */
+public class RoomEvents {
+
+  // one kind of event, recorded through JFR or not at all.
+  private static class Type {
+    Object begin() {
+      return null;
+    }
+
+    void commit(Object token, Object... values) {
+    }
+  }
+
+  private static final Type COMMAND = Jfr.type("org.ozzy.runtime.Command", "Room Command",
+      "groupId", "Group Id", String.class,
+      "command", "Command", String.class,
+      "actionCount", "Action Count", int.class,
+      "matchedCount", "Matched Action Count", int.class);
+  private static final Type CONDITION = Jfr.type("org.ozzy.runtime.Condition", "Condition Evaluation",
+      "condition", "Condition", String.class,
+      "result", "Result", boolean.class);
+  private static final Type SWITCH_ROOM = Jfr.type("org.ozzy.runtime.SwitchRoom", "Holodeck Room Switch",
+      "groupId", "Group Id", String.class,
+      "roomId", "Room Id", String.class,
+      "userCount", "User Count", int.class);
+  private static final Type BROADCAST = Jfr.type("org.ozzy.runtime.Broadcast", "Broadcast To Sessions",
+      "groupId", "Group Id", String.class,
+      "eventType", "Event Type", String.class,
+      "sessionCount", "Session Count", int.class,
+      "messageLength", "Message Length", int.class);
+
+  public static Object beginCommand() {
+    return COMMAND.begin();
+  }
+
+  public static void commitCommand(Object token, String groupId, String command, int actionCount,
+      int matchedCount) {
+    if (token != null) {
+      COMMAND.commit(token, groupId, command, actionCount, matchedCount);
+    }
+  }
+
+  public static Object beginCondition() {
+    return CONDITION.begin();
+  }
+
+  public static void commitCondition(Object token, String condition, boolean result) {
+    if (token != null) {
+      CONDITION.commit(token, condition, result);
+    }
+  }
+
+  public static Object beginSwitchRoom() {
+    return SWITCH_ROOM.begin();
+  }
+
+  public static void commitSwitchRoom(Object token, String groupId, String roomId, int userCount) {
+    if (token != null) {
+      SWITCH_ROOM.commit(token, groupId, roomId, userCount);
+    }
+  }
+
+  public static Object beginBroadcast() {
+    return BROADCAST.begin();
+  }
+
+  public static void commitBroadcast(Object token, String groupId, String eventType, int sessionCount,
+      int messageLength) {
+    if (token != null) {
+      BROADCAST.commit(token, groupId, eventType, sessionCount, messageLength);
+    }
+  }
+
+  // an event type made by jdk.jfr.EventFactory, driven through method handles.
+  private static class Jfr extends Type {
+    private static final Type NONE = new Type();
+
+    private final MethodHandle newEvent;
+    private final MethodHandle isEnabled;
+    private final MethodHandle begin;
+    private final MethodHandle set;
+    private final MethodHandle commit;
+    // never begun or committed, only asked whether the type is being recorded.
+    private final Object probe;
+
+    private Jfr(Object factory, Class<?> eventClass) throws Throwable {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      newEvent = lookup.findVirtual(factory.getClass(), "newEvent", MethodType.methodType(eventClass))
+          .bindTo(factory).asType(MethodType.methodType(Object.class));
+      isEnabled = lookup.findVirtual(eventClass, "isEnabled", MethodType.methodType(boolean.class))
+          .asType(MethodType.methodType(boolean.class, Object.class));
+      begin = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class))
+          .asType(MethodType.methodType(void.class, Object.class));
+      set = lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class))
+          .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+      commit = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class))
+          .asType(MethodType.methodType(void.class, Object.class));
+      probe = (Object) newEvent.invokeExact();
+    }
+
+    /**
+     * @param fields name, label and type of each field, in the order commit is
+     *          given their values
+     */
+    static Type type(String name, String label, Object... fields) {
+      try {
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        Class<?> eventClass = Class.forName("jdk.jfr.Event", false, loader);
+        Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement", false, loader);
+        Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", false, loader);
+        Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory", false, loader);
+        Class<?> nameType = Class.forName("jdk.jfr.Name", false, loader);
+        Class<?> labelType = Class.forName("jdk.jfr.Label", false, loader);
+        Class<?> categoryType = Class.forName("jdk.jfr.Category", false, loader);
+
+        MethodHandle annotation = MethodHandles.publicLookup().findConstructor(annotationElement,
+            MethodType.methodType(void.class, Class.class, Object.class));
+        MethodHandle value = MethodHandles.publicLookup().findConstructor(valueDescriptor,
+            MethodType.methodType(void.class, Class.class, String.class, List.class));
+        MethodHandle create = MethodHandles.publicLookup().findStatic(eventFactory, "create",
+            MethodType.methodType(eventFactory, List.class, List.class));
+
+        List<Object> annotations = Arrays.asList(annotation.invoke(nameType, name),
+            annotation.invoke(labelType, label),
+            annotation.invoke(categoryType, new String[] { "Game On", "Room" }));
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < fields.length; i += 3) {
+          values.add(value.invoke((Class<?>) fields[i + 2], (String) fields[i],
+              Collections.singletonList(annotation.invoke(labelType, fields[i + 1]))));
+        }
+        return new Jfr(create.invoke(annotations, values), eventClass);
+      } catch (Throwable t) {
+        // no jdk.jfr here (Java 8), or not one we can drive.
+        return NONE;
+      }
+    }
+
+    @Override
+    Object begin() {
+      try {
+        if (!(boolean) isEnabled.invokeExact(probe)) {
+          return null;
+        }
+        Object e = (Object) newEvent.invokeExact();
+        begin.invokeExact(e);
+        return e;
+      } catch (Throwable t) {
+        return null;
+      }
+    }
+
+    @Override
+    void commit(Object token, Object... values) {
+      try {
+        for (int i = 0; i < values.length; i++) {
+          set.invokeExact(token, i, values[i]);
+        }
+        commit.invokeExact(token);
+      } catch (Throwable t) {
+        // a lost event is no reason to fail the command it was timing.
+      }
+    }
+  }
+}
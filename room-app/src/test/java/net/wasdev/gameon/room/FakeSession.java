@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+/**
+ * A websocket session that is always open, and keeps what is sent to it.
+ */
+class FakeSession implements InvocationHandler {
+  final String id;
+  final List<String> sent = new CopyOnWriteArrayList<>();
+  final Session session;
+
+  private final Map<String, Object> userProperties = new ConcurrentHashMap<>();
+  private final RemoteEndpoint.Async async;
+
+  FakeSession(String id) {
+    this.id = id;
+    this.session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class },
+        this);
+    this.async = (RemoteEndpoint.Async) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { RemoteEndpoint.Async.class }, (proxy, method, args) -> {
+          if ("sendText".equals(method.getName()) && args.length == 2) {
+            sent.add((String) args[0]);
+            ((SendHandler) args[1]).onResult(new SendResult());
+          }
+          return null;
+        });
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "getId":
+        return id;
+      case "isOpen":
+        return true;
+      case "getUserProperties":
+        return userProperties;
+      case "getNegotiatedExtensions":
+        return Collections.emptyList();
+      case "getAsyncRemote":
+        return async;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "FakeSession(" + id + ")";
+      default:
+        return null;
+    }
+  }
+}
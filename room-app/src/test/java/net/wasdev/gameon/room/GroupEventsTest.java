@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Two room nodes sharing a group over an {@link InMemoryEventBus}.
+ */
+public class GroupEventsTest {
+  private static final Pattern BOOKMARK = Pattern.compile("\"bookmark\":\"([^\":]+):(\\d+)\"\\}$");
+
+  private TestNode owner;
+  private TestNode other;
+
+  @Before
+  public void startNodes() {
+    InMemoryEventBus.Broker broker = new InMemoryEventBus.Broker();
+    AtomicLong now = new AtomicLong(1000000);
+    TestNode a = new TestNode("a", broker, now::get);
+    TestNode b = new TestNode("b", broker, now::get);
+    // past the wait for a snapshot of the group, which neither ran.
+    for (int i = 0; i < 3; i++) {
+      now.addAndGet(TestNode.HEARTBEAT_MILLIS);
+      a.ownership.heartbeat();
+      b.ownership.heartbeat();
+    }
+    owner = a.ownership.isLocal(GroupRouter.DEFAULT_GROUP) ? a : b;
+    other = owner == a ? b : a;
+    assertTrue("the nodes agree on the owner", !other.ownership.isLocal(GroupRouter.DEFAULT_GROUP));
+  }
+
+  private static List<Long> bookmarks(List<String> frames) {
+    List<Long> result = new ArrayList<>();
+    for (String frame : frames) {
+      Matcher m = BOOKMARK.matcher(frame);
+      assertTrue("frame has a bookmark " + frame, m.find());
+      result.add(Long.parseLong(m.group(2)));
+    }
+    return result;
+  }
+
+  @Test
+  public void eventsRaisedOnEitherNodeAreNumberedByTheOwner() {
+    FakeSession here = owner.connect("player1");
+    FakeSession there = other.connect("player2");
+
+    owner.srrp.roomEvent("player1", "one");
+    other.srrp.roomEvent("player2", "two");
+    other.srrp.chatEvent("player2", "Player Two", "three");
+    owner.srrp.playerEvent("player1", null, "four");
+
+    List<Long> expected = new ArrayList<>();
+    for (long i = 1; i <= 4; i++) {
+      expected.add(i);
+    }
+    assertEquals(expected, bookmarks(here.sent));
+    assertEquals(here.sent, there.sent);
+  }
+
+  @Test
+  public void framesFromTheBusCanBeReplayed() {
+    FakeSession here = owner.connect("player1");
+    for (int i = 0; i < 5; i++) {
+      owner.srrp.roomEvent("player1", "event " + i);
+    }
+    other.srrp.chatEvent("player2", "Player Two", "hello");
+
+    // a player who saw up to bookmark 2 on the owner reconnects to the other node.
+    FakeSession resumed = new FakeSession("player1@other");
+    PlayerContext ctx = other.srrp.linkSessionWithPlayer(resumed.session, "player1");
+    String epoch = owner.srrp.bookmarkEpoch(GroupRouter.DEFAULT_GROUP);
+    assertEquals(epoch, other.srrp.bookmarkEpoch(GroupRouter.DEFAULT_GROUP));
+    assertTrue(other.srrp.replay(resumed.session, ctx, epoch + ":2"));
+    assertEquals(here.sent.subList(2, here.sent.size()), resumed.sent);
+  }
+
+  @Test
+  public void bookmarksFromAnotherEpochAreNotReplayed() {
+    owner.connect("player1");
+    for (int i = 0; i < 3; i++) {
+      owner.srrp.roomEvent("player1", "event " + i);
+    }
+    String epoch = owner.srrp.bookmarkEpoch(GroupRouter.DEFAULT_GROUP);
+
+    FakeSession resumed = new FakeSession("player1@other");
+    PlayerContext ctx = other.srrp.linkSessionWithPlayer(resumed.session, "player1");
+    // from before bookmarks had epochs, or from some other run of the group.
+    assertFalse(other.srrp.replay(resumed.session, ctx, "1"));
+    assertFalse(other.srrp.replay(resumed.session, ctx, "elsewhere:1"));
+
+    // the group starts again from scratch, the same numbers mean something else now.
+    other.srrp.restartBookmarks(GroupRouter.DEFAULT_GROUP);
+    other.srrp.setGroupOwnership(null);
+    other.srrp.roomEvent("player1", "after");
+    assertFalse(other.srrp.replay(resumed.session, ctx, epoch + ":1"));
+  }
+
+  @Test
+  public void aNewOwnerCarriesOnFromTheLastBookmark() {
+    owner.connect("player1");
+    for (int i = 0; i < 3; i++) {
+      owner.srrp.roomEvent("player1", "event " + i);
+    }
+    // the owner is gone, and the other node runs the group alone.
+    other.srrp.setGroupOwnership(null);
+    FakeSession there = other.connect("player2");
+    other.srrp.roomEvent("player2", "after");
+
+    List<Long> seen = bookmarks(there.sent);
+    assertEquals(1, seen.size());
+    assertEquals(4L, (long) seen.get(0));
+    assertTrue(there.sent.get(0).contains(owner.srrp.bookmarkEpoch(GroupRouter.DEFAULT_GROUP) + ":4"));
+  }
+
+  @Test
+  public void kafkaRecordsCarryTheBookmarks() {
+    List<String> frames = new ArrayList<>();
+    frames.add("player,*,{\"bookmark\":\"e1:7\"}");
+    frames.add("player,*,{\"bookmark\":\"e1:9\"}");
+    assertEquals("a e1\n7 player,*,{\"bookmark\":\"e1:7\"}\n9 player,*,{\"bookmark\":\"e1:9\"}",
+        KafkaEventBus.encode("a", "e1", new long[] { 7, 9 }, frames));
+  }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Groups moving between room nodes as nodes join and leave. With nodes a and b,
+ * the ring gives "default" to b and "fbtwitter" to a.
+ */
+public class GroupOwnershipTest {
+  private static final String MOVES = GroupRouter.DEFAULT_GROUP;
+  private static final String STAYS = "fbtwitter";
+  // routed to each group by the default rules.
+  private static final String MOVES_PLAYER = "player1";
+  private static final String STAYS_PLAYER = "twitter:player2";
+
+  private final AtomicLong now = new AtomicLong(1000000);
+  private InMemoryEventBus.Broker broker;
+  private TestNode a;
+
+  @Before
+  public void startFirstNode() {
+    broker = new InMemoryEventBus.Broker();
+    a = new TestNode("a", broker, now::get, MOVES, STAYS);
+    settle(a);
+  }
+
+  private TestNode start(String nodeId) {
+    return new TestNode(nodeId, broker, now::get, MOVES, STAYS);
+  }
+
+  private void settle(TestNode... nodes) {
+    for (int i = 0; i < 3; i++) {
+      now.addAndGet(TestNode.HEARTBEAT_MILLIS);
+      for (TestNode n : nodes) {
+        n.ownership.heartbeat();
+      }
+    }
+    for (TestNode n : nodes) {
+      assertTrue(n + " has settled", n.ownership.isSettled());
+    }
+  }
+
+  private static void push(TestNode node, String playerId, int times) {
+    for (int i = 0; i < times; i++) {
+      node.holodeck.command(playerId, "push");
+    }
+  }
+
+  @Test
+  public void aJoiningNodeTakesOverOnlyWhatMovesToIt() {
+    push(a, MOVES_PLAYER, 3);
+    push(a, STAYS_PLAYER, 2);
+
+    TestNode b = start("b");
+    b.ownership.heartbeat();
+    a.ownership.heartbeat();
+
+    assertTrue(b.ownership.isLocal(MOVES));
+    assertTrue(a.ownership.isLocal(STAYS));
+    // b's freshly built state never reaches a, and a's moves to b.
+    assertEquals(3, b.pushes(MOVES));
+    assertEquals(2, a.pushes(STAYS));
+    assertEquals(0, b.pushes(STAYS));
+
+    settle(a, b);
+    push(b, MOVES_PLAYER, 1);
+    push(b, STAYS_PLAYER, 1);
+    assertEquals(4, b.pushes(MOVES));
+    assertEquals(3, a.pushes(STAYS));
+  }
+
+  @Test
+  public void aJoiningNodeDoesNotClaimWhatItRanBeforeSettling() {
+    push(a, STAYS_PLAYER, 2);
+    TestNode b = start("b");
+    // before hearing from a, b thinks it owns everything.
+    push(b, STAYS_PLAYER, 5);
+    assertEquals(5, b.pushes(STAYS));
+
+    b.ownership.heartbeat();
+    a.ownership.heartbeat();
+    settle(a, b);
+
+    assertEquals(2, a.pushes(STAYS));
+    push(b, STAYS_PLAYER, 1);
+    assertEquals(3, a.pushes(STAYS));
+  }
+
+  @Test
+  public void aLeavingNodesGroupsAreRunByTheOthers() {
+    TestNode b = start("b");
+    settle(a, b);
+    push(b, MOVES_PLAYER, 2);
+    assertEquals(2, b.pushes(MOVES));
+    assertEquals(0, a.pushes(MOVES));
+
+    String epoch = b.srrp.bookmarkEpoch(MOVES);
+    assertEquals(epoch, a.srrp.bookmarkEpoch(MOVES));
+
+    // b stops, a stops hearing from it.
+    b.stop();
+    now.addAndGet(4 * TestNode.HEARTBEAT_MILLIS);
+    a.ownership.heartbeat();
+
+    assertTrue(a.ownership.isLocal(MOVES));
+    push(a, MOVES_PLAYER, 1);
+    assertEquals(1, a.pushes(MOVES));
+    assertEquals(2, b.pushes(MOVES));
+    // without b's state, what b numbered can't be replayed over a's.
+    assertFalse(epoch.equals(a.srrp.bookmarkEpoch(MOVES)));
+  }
+
+  @Test
+  public void commandsBeforeTheSnapshotWaitForIt() {
+    push(a, MOVES_PLAYER, 3);
+    TestNode b = start("b");
+    // b hears from a before a hears from b, and so before a hands the group over.
+    a.ownership.heartbeat();
+    assertTrue(b.ownership.isLocal(MOVES));
+    b.ownership.onControl(Json.createObjectBuilder().add("type", "command").add("node", "a").add("target", "b")
+        .add("groupId", MOVES).add("userId", MOVES_PLAYER).add("content", "push").add("hops", 0).build()
+        .toString());
+    assertEquals(0, b.pushes(MOVES));
+
+    b.ownership.heartbeat();
+    // a's state arrived, and the command ran over it.
+    assertEquals(4, b.pushes(MOVES));
+    assertEquals(3, a.pushes(MOVES));
+  }
+
+  @Test
+  public void commandsRunWithoutASnapshotOnceItIsOverdue() {
+    TestNode b = start("b");
+    a.ownership.heartbeat();
+    // a never ran the group, so has nothing to hand over.
+    push(b, MOVES_PLAYER, 1);
+    assertEquals(0, b.pushes(MOVES));
+
+    settle(a, b);
+    assertEquals(1, b.pushes(MOVES));
+    push(b, MOVES_PLAYER, 1);
+    assertEquals(2, b.pushes(MOVES));
+  }
+
+  @Test
+  public void forwardsThatMissTheOwnerArePassedOn() {
+    TestNode b = start("b");
+    settle(a, b);
+    // sent to a, as if by a node that still thought a owned the group.
+    a.ownership.onControl(Json.createObjectBuilder().add("type", "command").add("node", "b").add("target", "a")
+        .add("groupId", MOVES).add("userId", MOVES_PLAYER).add("content", "push").add("hops", 0).build()
+        .toString());
+    assertEquals(0, a.pushes(MOVES));
+    assertEquals(1, b.pushes(MOVES));
+  }
+
+  @Test
+  public void snapshotsOverLiveStateAreRefused() {
+    TestNode b = start("b");
+    settle(a, b);
+    push(b, MOVES_PLAYER, 2);
+
+    // a never owned the group under {a, b}, and b has it running.
+    assertFalse(b.holodeck.restore(MOVES, "a", a.holodeck.snapshot(MOVES)));
+    // nor does a take one for a group it doesn't own.
+    assertFalse(a.holodeck.restore(MOVES, "b", b.holodeck.snapshot(MOVES)));
+    assertEquals(2, b.pushes(MOVES));
+    assertEquals(0, a.pushes(MOVES));
+  }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GroupRouterTest {
+
+  // how players were grouped before the rules were configurable.
+  private static String original(String playerId) {
+    String groupId = "default";
+    if (playerId.startsWith("facebook:") || playerId.startsWith("twitter:")) {
+      groupId = "fbtwitter";
+    } else if (playerId.startsWith("story:colab:")) {
+      groupId = playerId.substring(0, playerId.lastIndexOf(':'));
+    }
+    return groupId;
+  }
+
+  @Test
+  public void defaultRulesRouteAsBefore() {
+    GroupRouter router = new GroupRouter(GroupRouter.DEFAULT_RULES);
+    String[] ids = { "facebook:123", "twitter:bob", "github:alice", "dummy.DevUser", "story:colab:1",
+        "story:colab:a:b", "story:colab:", "story:colabX:1", "story:colab", "story:other:1", "facebook",
+        "twitter:", "" };
+    for (String id : ids) {
+      assertEquals(id, original(id), router.route(id));
+    }
+  }
+
+  @Test
+  public void exactRulesWin() {
+    GroupRouter router = new GroupRouter("prefix:twitter:=social;regex:twitter:.*=other;exact:twitter:bob=bobs");
+    assertEquals("bobs", router.route("twitter:bob"));
+    assertEquals("social", router.route("twitter:alice"));
+  }
+
+  @Test
+  public void longestLiteralPrefixWins() {
+    GroupRouter router = new GroupRouter("prefix:tw=short;regex:twitter:(.*)=long-$1;prefix:twitter:x=longest");
+    assertEquals("short", router.route("twitch:bob"));
+    assertEquals("long-bob", router.route("twitter:bob"));
+    assertEquals("longest", router.route("twitter:xavier"));
+  }
+
+  @Test
+  public void earlierRulesWinAtTheSamePrefix() {
+    GroupRouter router = new GroupRouter("regex:twitter:a.*=first;prefix:twitter:=second;regex:twitter:.*=third");
+    assertEquals("first", router.route("twitter:alice"));
+    assertEquals("second", router.route("twitter:bob"));
+  }
+
+  @Test
+  public void deeperRulesThatDontMatchFallBackToShallowerOnes() {
+    GroupRouter router = new GroupRouter("prefix:story:=stories;regex:story:colab:[0-9]+=numbered");
+    assertEquals("numbered", router.route("story:colab:12"));
+    assertEquals("stories", router.route("story:colab:twelve"));
+  }
+
+  @Test
+  public void alternationIsTriedForEveryBranch() {
+    GroupRouter router = new GroupRouter("regex:facebook:.*|twitter:.*=social");
+    assertEquals("social", router.route("facebook:bob"));
+    assertEquals("social", router.route("twitter:bob"));
+    assertEquals(GroupRouter.DEFAULT_GROUP, router.route("github:bob"));
+  }
+
+  @Test
+  public void literalPrefixes() {
+    assertEquals("facebook:", GroupRouter.literalPrefix("facebook:.*"));
+    assertEquals("story:colab", GroupRouter.literalPrefix("story:colab(|:.*):[^:]*"));
+    assertEquals("twitter", GroupRouter.literalPrefix("twitter:?.*"));
+    assertEquals("", GroupRouter.literalPrefix("facebook:.*|twitter:.*"));
+    assertEquals("a", GroupRouter.literalPrefix("a(b|c)"));
+    assertEquals("a", GroupRouter.literalPrefix("a[|]b"));
+    assertEquals("", GroupRouter.literalPrefix("a\\|b|c"));
+    assertEquals("", GroupRouter.literalPrefix("(a|b)c"));
+  }
+}
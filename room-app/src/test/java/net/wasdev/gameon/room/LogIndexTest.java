@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogIndexTest {
+  private Path dir;
+
+  @Before
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("logindex");
+    Files.write(dir.resolve("messages.log"), Arrays.asList(
+        "[10/19/26 14:03:12:345 UTC] 0001 I joined id=player1",
+        "[10/19/26, 14:03:40:001 UTC] 0001 I said hello id=player1",
+        "[10/19/26 14:04:00:000 UTC] 0001 I left id=player1"), StandardCharsets.ISO_8859_1);
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    for (File f : dir.toFile().listFiles()) {
+      f.delete();
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void minuteMatchesWithOrWithoutTheComma() throws IOException {
+    assertEquals(2, LogIndex.search(dir.toString(), "time:10/19/26 14:03", null, 10).size());
+    assertEquals(2, LogIndex.search(dir.toString(), "time:10/19/26, 14:03", null, 10).size());
+  }
+
+  @Test
+  public void idRestrictedToTheMinute() throws IOException {
+    List<LogIndex.Hit> hits = LogIndex.search(dir.toString(), "player1", "10/19/26,  14:04", 10);
+    assertEquals(1, hits.size());
+    assertEquals("[10/19/26 14:04:00:000 UTC] 0001 I left id=player1", hits.get(0).line);
+  }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import javax.websocket.Session;
+
+import org.ozzy.model.Room;
+import org.ozzy.model.Story;
+import org.ozzy.runtime.RoomEngine;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+import net.wasdev.gameon.room.LifecycleManager.Holodeck;
+import net.wasdev.gameon.room.LifecycleManager.SessionRoomResponseProcessor;
+
+/**
+ * A room node wired up as LifecycleManager does, over an in memory bus, running
+ * a one room story where /push counts the pushes.
+ */
+class TestNode {
+  static final String STORY = "id: test\n"
+      + "revision: '1'\n"
+      + "rooms:\n"
+      + "-  name: Start\n"
+      + "   id: start\n"
+      + "   state:\n"
+      + "      pushes: 0\n"
+      + "   commands:\n"
+      + "   -  name: push\n"
+      + "      actions:\n"
+      + "      -  do:\n"
+      + "         - inc room.state.pushes\n"
+      + "         user: pushed\n";
+
+  static final long HEARTBEAT_MILLIS = 1000;
+
+  final String nodeId;
+  final Map<String, Collection<Session>> sessions = new ConcurrentHashMap<>();
+  final SessionRoomResponseProcessor srrp = new SessionRoomResponseProcessor(sessions);
+  final Holodeck holodeck;
+  final GroupOwnership ownership;
+  private final InMemoryEventBus bus;
+
+  TestNode(String nodeId, InMemoryEventBus.Broker broker, LongSupplier clock, String... groupIds) {
+    this.nodeId = nodeId;
+    Map<String, Map<String, RoomEngine>> programs = new ConcurrentHashMap<>();
+    for (String groupId : groupIds) {
+      Story s = new Yaml(new Constructor(Story.class)).load(new StringReader(STORY));
+      Map<String, RoomEngine> rooms = new HashMap<>();
+      for (Room r : s.getRooms()) {
+        rooms.put(r.getId(), new RoomEngine(s.getVars(), s.getCommands(), s.getCommanddescriptions(), s.getId(),
+            s.getRevision(), groupId, r));
+      }
+      programs.put(groupId, rooms);
+    }
+    holodeck = new Holodeck(programs, "start");
+
+    bus = new InMemoryEventBus(broker);
+    srrp.setEventBus(bus, nodeId);
+    holodeck.setRoomResponseProcessor(srrp);
+    ownership = new GroupOwnership(nodeId, bus, holodeck, HEARTBEAT_MILLIS, clock);
+    holodeck.setGroupOwnership(ownership);
+    srrp.setGroupOwnership(ownership);
+  }
+
+  FakeSession connect(String playerId) {
+    FakeSession s = new FakeSession(playerId + "@" + nodeId);
+    srrp.addSession(s.session);
+    srrp.linkSessionWithPlayer(s.session, playerId);
+    return s;
+  }
+
+  void stop() {
+    bus.close();
+  }
+
+  long pushes(String groupId) {
+    RoomEngine engine = holodeck.activeRoomEngineByGroupId.get(groupId).get();
+    return ((Number) engine.stateById.get("room.state.pushes")).longValue();
+  }
+
+  @Override
+  public String toString() {
+    return nodeId;
+  }
+}
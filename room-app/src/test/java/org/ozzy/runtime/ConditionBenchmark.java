@@ -0,0 +1,101 @@
+package org.ozzy.runtime;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rough comparison of the condition backends, run by hand with
+ * <code>./gradlew :room-app:conditionBenchmark [-Pevaluations=n]</code>. It lives
+ * with the tests so it stays out of the war.
+ * <p>
+ * For conditions of growing length it reports what each backend costs to build
+ * and to evaluate, and how many evaluations a condition has to see before the
+ * handles backend has paid back its extra build time over the interpreter.
+ */
+public class ConditionBenchmark {
+
+  private static volatile boolean sink;
+
+  public static void main(String args[]) {
+    int evaluations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+    Map<String, Object> stateById = new HashMap<String, Object>();
+    Map<String, Integer> slotByVar = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < 16; i++) {
+      stateById.put("room.state." + (char) ('a' + i), "true");
+      slotByVar.put("room.state." + (char) ('a' + i), i);
+    }
+
+    System.out.println("terms  build-interp(ns)  build-handles(ns)  textual(ns)  interp(ns)  handles(ns)  crossover");
+    for (int terms = 1; terms <= 16; terms *= 2) {
+      StringBuilder sb = new StringBuilder("{arg}==lamp");
+      for (int i = 1; i < terms; i++) {
+        sb.append(" && room.state.").append((char) ('a' + i)).append("==true");
+      }
+      String expression = sb.toString();
+
+      // warm both paths up before timing anything.
+      for (int i = 0; i < 20000; i++) {
+        ConditionParser.compile(expression, slotByVar, false).evaluateCompiled(stateById, "lamp", "id", "name");
+        ConditionParser.compile(expression, slotByVar, true).evaluateCompiled(stateById, "lamp", "id", "name");
+      }
+
+      long buildInterp = timeBuild(expression, slotByVar, false);
+      long buildHandles = timeBuild(expression, slotByVar, true);
+
+      ConditionParser.Condition interp = ConditionParser.compile(expression, slotByVar, false);
+      ConditionParser.Condition handles = ConditionParser.compile(expression, slotByVar, true);
+      if (interp.evaluateCompiled(stateById, "lamp", "id", "name") != handles.evaluateCompiled(stateById, "lamp",
+          "id", "name")) {
+        System.out.println("ERROR: backends disagree on " + expression);
+        return;
+      }
+
+      double textual = timeTextual(expression, stateById, evaluations / 20);
+      double evalInterp = timeEval(interp, stateById, evaluations);
+      double evalHandles = timeEval(handles, stateById, evaluations);
+
+      String crossover = evalHandles < evalInterp
+          ? String.valueOf((long) Math.ceil(Math.max(0, buildHandles - buildInterp) / (evalInterp - evalHandles)))
+          : "never";
+      System.out.println(String.format("%5d  %16d  %17d  %11.1f  %10.1f  %11.1f  %9s", terms, buildInterp,
+          buildHandles, textual, evalInterp, evalHandles, crossover));
+    }
+  }
+
+  private static long timeBuild(String expression, Map<String, Integer> slotByVar, boolean useHandles) {
+    int rounds = 2000;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      ConditionParser.compile(expression, slotByVar, useHandles);
+    }
+    return (System.nanoTime() - start) / rounds;
+  }
+
+  private static double timeEval(ConditionParser.Condition condition, Map<String, Object> stateById, int rounds) {
+    boolean result = false;
+    for (int i = 0; i < rounds; i++) {
+      result ^= condition.evaluateCompiled(stateById, (i & 1) == 0 ? "lamp" : "door", "id", "name");
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      result ^= condition.evaluateCompiled(stateById, (i & 1) == 0 ? "lamp" : "door", "id", "name");
+    }
+    long elapsed = System.nanoTime() - start;
+    sink = result;
+    return (double) elapsed / rounds;
+  }
+
+  private static double timeTextual(String expression, Map<String, Object> stateById, int rounds) {
+    ConditionParser cp = new ConditionParser();
+    boolean result = false;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      result ^= cp.evaluate(expression, stateById, (i & 1) == 0 ? "lamp" : "door", "id", "name");
+    }
+    long elapsed = System.nanoTime() - start;
+    sink = result;
+    return (double) elapsed / rounds;
+  }
+}
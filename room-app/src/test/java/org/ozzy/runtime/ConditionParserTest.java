@@ -0,0 +1,187 @@
+package org.ozzy.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class ConditionParserTest {
+  static final String[] CONDITIONS = {
+      "{arg}==\"north\" || {arg}==\"n\"",
+      "{arg}==north",
+      "{arg}!=\"north\"",
+      "room.state.light==on",
+      "room.state.light==\"off\" && {arg}==look",
+      "{arg}==look || room.state.light==on && {id}==\"p1\"",
+      "room.state.door=={arg}",
+      "{name}==Ann || {name}==Bob",
+      "room.state.light==room.state.door",
+      "{arg} in [north, n]",
+      "room.state.door in [red, \"blue\"] && {arg} in [look, 'l']",
+  };
+  static final String[] ARGS = { "north", "n", "look", "", "red", "south" };
+
+  private final Map<String, Integer> slotByVar = new LinkedHashMap<String, Integer>();
+
+  public ConditionParserTest() {
+    slotByVar.put("room.state.light", 0);
+    slotByVar.put("room.state.door", 1);
+  }
+
+  static Map<String, Object> state(Object light, Object door) {
+    Map<String, Object> stateById = new HashMap<String, Object>();
+    stateById.put("room.state.light", light);
+    stateById.put("room.state.door", door);
+    return stateById;
+  }
+
+  // as the room works them out: values substitution would rewrite.
+  static Set<String> dirty(Map<String, Object> stateById) {
+    Set<String> dirtyVars = new HashSet<String>();
+    for (Map.Entry<String, Object> kv : stateById.entrySet()) {
+      String text = kv.getValue().toString();
+      boolean dirty = text.indexOf('{') >= 0;
+      for (String other : stateById.keySet()) {
+        dirty |= text.contains(other);
+      }
+      if (dirty) {
+        dirtyVars.add(kv.getKey());
+      }
+    }
+    return dirtyVars;
+  }
+
+  // the result, or the kind of failure: both ways must refuse the same conditions.
+  static Object outcome(Callable<Boolean> evaluation) {
+    try {
+      return evaluation.call();
+    } catch (Exception e) {
+      return e.getClass();
+    }
+  }
+
+  // the compiled condition against the textual evaluation it replaces, on both backends.
+  void assertSameAsTextual(String[] conditions, Map<String, Object> stateById, String... args) {
+    for (boolean useHandles : new boolean[] { false, true }) {
+      for (String condition : conditions) {
+        ConditionParser.Condition compiled = ConditionParser.compile(condition, slotByVar, useHandles);
+        for (String arg : args) {
+          for (String id : new String[] { "p1", "p2" }) {
+            String name = "p1".equals(id) ? "Ann" : "Cy";
+            Object textual = outcome(() -> new ConditionParser().evaluate(condition, stateById, arg, id, name));
+            assertEquals(condition + " with " + stateById + " arg '" + arg + "' handles " + useHandles, textual,
+                outcome(() -> compiled.evaluate(stateById, dirty(stateById), new long[slotByVar.size()], arg, id,
+                    name)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void compiledMatchesTextual() {
+    assertSameAsTextual(CONDITIONS, state("on", "red"), ARGS);
+    assertSameAsTextual(CONDITIONS, state("off", "on"), ARGS);
+  }
+
+  @Test
+  public void conditionsTheCompilerLeavesAloneStillMatchTextual() {
+    // a value naming another var, and an arg holding a template, are only right once substituted.
+    assertSameAsTextual(CONDITIONS, state("room.state.door", "{arg}"), ARGS);
+    assertSameAsTextual(CONDITIONS, state("on", "red"), "{id}", "{arg}");
+  }
+
+  @Test
+  public void requiredValuesOfAnArgDisjunction() {
+    ConditionParser.Condition c = ConditionParser.compile(CONDITIONS[0], slotByVar, false);
+    assertEquals(new HashSet<String>(Arrays.asList("north", "n")),
+        c.requiredValues().get(ConditionParser.ARG));
+  }
+
+  @Test
+  public void cachedResultLastsUntilAVarItReadsIsSet() {
+    for (boolean useHandles : new boolean[] { false, true }) {
+      ConditionParser.Condition c = ConditionParser.compile("room.state.light==on && {arg}==look", slotByVar,
+          useHandles);
+      Map<String, Object> stateById = state("on", "red");
+      Set<String> dirtyVars = new HashSet<String>();
+      long[] versions = new long[slotByVar.size()];
+      assertEquals(true, c.evaluate(stateById, dirtyVars, versions, "look", "p1", "Ann"));
+      assertEquals(false, c.evaluate(stateById, dirtyVars, versions, "north", "p1", "Ann"));
+
+      // the room always bumps the version when it sets a var, a change without one is never seen.
+      stateById.put("room.state.light", "off");
+      assertEquals(true, c.evaluate(stateById, dirtyVars, versions, "look", "p1", "Ann"));
+      versions[slotByVar.get("room.state.light")]++;
+      assertEquals(false, c.evaluate(stateById, dirtyVars, versions, "look", "p1", "Ann"));
+
+      // vars the condition doesn't read leave the cache alone.
+      stateById.put("room.state.light", "on");
+      versions[slotByVar.get("room.state.door")]++;
+      assertEquals(false, c.evaluate(stateById, dirtyVars, versions, "look", "p1", "Ann"));
+      versions[slotByVar.get("room.state.light")]++;
+      assertEquals(true, c.evaluate(stateById, dirtyVars, versions, "look", "p1", "Ann"));
+    }
+  }
+
+  @Test
+  public void comparingSomethingThatIsNotAWholeNumberIsFalse() {
+    String[] conditions = { "room.state.count>2", "room.state.count<=2", "{arg}>=room.state.count",
+        "room.state.count<{arg}", "room.state.light>1", "room.state.count==2", "room.state.count!=\"2\"" };
+    Map<String, Object> stateById = state("on", "red");
+    stateById.put("room.state.count", 2L);
+    slotByVar.put("room.state.count", 2);
+    assertSameAsTextual(conditions, stateById, "1", "3", "-4", "2.5", "three", "");
+
+    ConditionParser cp = new ConditionParser();
+    assertEquals(false, cp.evaluate("room.state.count<{arg}", stateById, "2.5", "p1", "Ann"));
+    assertEquals(false, cp.evaluate("room.state.count>={arg}", stateById, "three", "p1", "Ann"));
+    assertEquals(false, cp.evaluate("room.state.light>1", stateById, "", "p1", "Ann"));
+    assertEquals(false, cp.evaluate("room.state.light<=1", stateById, "", "p1", "Ann"));
+    assertEquals(true, cp.evaluate("room.state.count<{arg}", stateById, "3", "p1", "Ann"));
+    assertEquals(true, cp.evaluate("room.state.count>{arg}", stateById, "-4", "p1", "Ann"));
+  }
+
+  @Test
+  public void inWithQuotedMembers() {
+    String[] conditions = { "{arg} in [\"north east\", 'ne', up]", "room.state.door in [ \"red\" , 'on' ]",
+        "{arg} in [\"look\"] || room.state.light in ['off']" };
+    assertSameAsTextual(conditions, state("on", "red"), "north east", "ne", "up", "'ne'", "\"up\"", "look", "");
+    assertSameAsTextual(conditions, state("off", "on"), "north east", "ne", "up", "'ne'", "\"up\"", "look", "");
+
+    ConditionParser cp = new ConditionParser();
+    Map<String, Object> stateById = state("on", "red");
+    assertEquals(true, cp.evaluate(conditions[0], stateById, "north east", "p1", "Ann"));
+    assertEquals(true, cp.evaluate(conditions[0], stateById, "ne", "p1", "Ann"));
+    assertEquals(false, cp.evaluate(conditions[0], stateById, "'ne'", "p1", "Ann"));
+    assertEquals(true, cp.evaluate(conditions[1], stateById, "", "p1", "Ann"));
+    assertEquals(new HashSet<String>(Arrays.asList("north east", "ne", "up")),
+        ConditionParser.compile(conditions[0], slotByVar, false).requiredValues().get(ConditionParser.ARG));
+  }
+
+  @Test
+  public void inWithAnEmptyListIsRefused() {
+    String[] conditions = { "{arg} in []", "{arg} in [ ]", "{arg} in [a, , b]", "{arg} in [a,]", "{arg} in [a",
+        "{arg} in a", "{arg} in [{id}]" };
+    for (String condition : conditions) {
+      try {
+        new ConditionParser().evaluate(condition, state("on", "red"), "a", "p1", "Ann");
+        fail(condition);
+      } catch (RuntimeException e) {
+        assertTrue(condition, e.getCause() instanceof ConditionParser.ParseException);
+      }
+      ConditionParser.Condition c = ConditionParser.compile(condition, slotByVar, false);
+      assertTrue(condition, c.requiredValues().isEmpty());
+    }
+    assertSameAsTextual(conditions, state("on", "red"), "a", "");
+  }
+}
@@ -0,0 +1,317 @@
+package org.ozzy.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ozzy.model.Action;
+import org.ozzy.model.Command;
+import org.ozzy.model.Story;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+public class RoomEngineTest {
+  static final String[] GO = {
+      "{arg}==\"north\" || {arg}==\"n\"",
+      "{arg}==south || {arg}==s",
+      "{arg}==north && room.state.light==on",
+      "room.state.light==off",
+      "room.state.light==\"on\" && {arg}!=\"north\"",
+      "room.state.door=={arg}",
+      "room.state.door==red || {arg}==s",
+      "room.state.door==on",
+      "room.state.door==\"blue\"",
+      "{id}==p1 && {arg}==n",
+      "{arg} in [up, \"u\", 'north']",
+      "room.state.door in [blue, on] && {arg} in [s, up]",
+      "",
+      "unmatched",
+  };
+  static final String[] ARGS = { "north", "n", "south", "s", "red", "blue", "up", "u", "" };
+
+  static String story(String[] conditions) {
+    StringBuilder yaml = new StringBuilder("id: test\n"
+        + "revision: '1'\n"
+        + "rooms:\n"
+        + "-  name: Start\n"
+        + "   id: start\n"
+        + "   state:\n"
+        + "      light: 'off'\n"
+        + "      door: red\n"
+        + "      count: 0\n"
+        + "      open: false\n"
+        + "   commands:\n"
+        + "   -  name: light\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - set room.state.light={arg}\n"
+        + "         user: light\n"
+        + "   -  name: door\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - set room.state.door={arg}\n"
+        + "         user: door\n"
+        + "   -  name: inc\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - inc room.state.count\n"
+        + "         user: inc\n"
+        + "   -  name: dec\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - dec room.state.count=2\n"
+        + "         user: dec\n"
+        + "   -  name: count\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - set room.state.count={arg}\n"
+        + "         user: count\n"
+        + "   -  name: open\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - set room.state.open={arg}\n"
+        + "         user: open\n"
+        + "   -  name: bump\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - inc room.state.count={arg}\n"
+        + "         user: bump\n"
+        + "   -  name: brighten\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - inc room.state.light\n"
+        + "         user: brighten\n"
+        + "   -  name: look\n"
+        + "      actions:\n"
+        + "      -  condition: room.state.light==on && room.state.count>=2\n"
+        + "         user: bright and busy\n"
+        + "      -  condition: room.state.light==on && room.state.count<2\n"
+        + "         user: bright\n"
+        + "      -  condition: room.state.light==off\n"
+        + "         user: dark\n"
+        + "   -  name: go\n"
+        + "      actions:\n");
+    for (int i = 0; i < conditions.length; i++) {
+      yaml.append("      -  user: '" + i + "'\n");
+      if (!conditions[i].isEmpty()) {
+        yaml.append("         condition: '" + conditions[i].replace("'", "''") + "'\n");
+      }
+    }
+    return yaml.toString();
+  }
+
+  // what each player was told, in order.
+  static class Replies extends RoomEngine.DebugResponseProcessor {
+    final List<String> told = new ArrayList<String>();
+
+    @Override
+    public void playerEvent(String senderId, String selfMessage, String othersMessage) {
+      told.add(selfMessage);
+    }
+  }
+
+  RoomEngine engine;
+  Replies replies;
+  List<Action> goActions;
+
+  RoomEngine load(String[] conditions) {
+    Story s = new Yaml(new Constructor(Story.class)).load(new StringReader(story(conditions)));
+    engine = new RoomEngine(s.getVars(), s.getCommands(), s.getCommanddescriptions(), s.getId(),
+        s.getRevision(), "group", s.getRooms().get(0));
+    replies = new Replies();
+    engine.rrp = replies;
+    for (Command c : s.getRooms().get(0).getCommands()) {
+      if ("go".equals(c.getName())) {
+        goActions = c.getActions();
+      }
+    }
+    return engine;
+  }
+
+  @Before
+  public void loadRoom() {
+    load(GO);
+  }
+
+  String send(String command) {
+    engine.processRoomInput(command, "p1", "Ann");
+    return replies.told.get(replies.told.size() - 1);
+  }
+
+  // the go actions a full scan, evaluating every condition as text, would match.
+  Set<String> expected(String arg) {
+    Set<String> matched = new HashSet<String>();
+    Set<String> unmatched = new HashSet<String>();
+    for (int i = 0; i < goActions.size(); i++) {
+      String c = goActions.get(i).getCondition();
+      if (c == null || c.trim().isEmpty()) {
+        matched.add(String.valueOf(i));
+      } else if (c.trim().equals("unmatched")) {
+        unmatched.add(String.valueOf(i));
+      } else if (engine.evaluateCondition(c, arg, "p1", "Ann")) {
+        matched.add(String.valueOf(i));
+      }
+    }
+    return matched.isEmpty() ? unmatched : matched;
+  }
+
+  // the actions go chose from, the room rotates through each of them in turn.
+  Set<String> chosen(String arg) {
+    int n = expected(arg).size();
+    Set<String> chosen = new HashSet<String>();
+    for (int i = 0; i < n; i++) {
+      chosen.add(send(arg.isEmpty() ? "/go" : "/go " + arg));
+    }
+    return chosen;
+  }
+
+  void assertIndexMatchesFullScan() {
+    for (String arg : ARGS) {
+      // with no arg the room is handed the command itself.
+      String effective = arg.isEmpty() ? "go" : arg;
+      assertEquals("go '" + arg + "' with " + engine.stateById, expected(effective), chosen(arg));
+    }
+  }
+
+  @Test
+  public void candidateIndexNeverDropsAMatchingAction() {
+    assertIndexMatchesFullScan();
+    send("/light on");
+    assertEquals("on", engine.stateById.get("room.state.light"));
+    assertIndexMatchesFullScan();
+    send("/door blue");
+    assertEquals("blue", engine.stateById.get("room.state.door"));
+    assertIndexMatchesFullScan();
+  }
+
+  @Test
+  public void candidateIndexWithStateThatWouldBeSubstituted() {
+    // a value holding a template, or naming another var, is only known once substituted.
+    send("/door {arg}");
+    assertEquals("{arg}", engine.stateById.get("room.state.door"));
+    assertIndexMatchesFullScan();
+    send("/door room.state.light");
+    assertEquals("room.state.light", engine.stateById.get("room.state.door"));
+    assertIndexMatchesFullScan();
+  }
+
+  @Test
+  public void cachedResultsFollowSetIncAndDec() {
+    assertEquals("dark", send("/look"));
+    assertEquals("dark", send("/look"));
+    send("/light on");
+    assertEquals("bright", send("/look"));
+    send("/inc");
+    assertEquals("bright", send("/look"));
+    send("/inc");
+    assertEquals("bright and busy", send("/look"));
+    assertEquals("bright and busy", send("/look"));
+    send("/dec");
+    assertEquals(0L, engine.stateById.get("room.state.count"));
+    assertEquals("bright", send("/look"));
+    send("/light off");
+    assertEquals("dark", send("/look"));
+  }
+
+  @Test
+  public void declaredTypesAreKept() {
+    assertEquals(0L, engine.stateById.get("room.state.count"));
+    assertEquals(Boolean.FALSE, engine.stateById.get("room.state.open"));
+    assertEquals("off", engine.stateById.get("room.state.light"));
+
+    send("/count 12");
+    assertEquals(12L, engine.stateById.get("room.state.count"));
+    send("/open true");
+    assertEquals(Boolean.TRUE, engine.stateById.get("room.state.open"));
+    send("/bump 3");
+    assertEquals(15L, engine.stateById.get("room.state.count"));
+  }
+
+  @Test
+  public void valuesOfTheWrongTypeAreRefused() {
+    send("/count lots");
+    send("/count 1.5");
+    assertEquals(0L, engine.stateById.get("room.state.count"));
+    send("/open maybe");
+    assertEquals(Boolean.FALSE, engine.stateById.get("room.state.open"));
+    send("/bump two");
+    assertEquals(0L, engine.stateById.get("room.state.count"));
+    send("/brighten");
+    assertEquals("off", engine.stateById.get("room.state.light"));
+  }
+
+  @Test
+  public void verifyRoomReportsTypeErrors() {
+    String yaml = "id: test\n"
+        + "revision: '1'\n"
+        + "rooms:\n"
+        + "-  name: Start\n"
+        + "   id: start\n"
+        + "   state:\n"
+        + "      light: 'off'\n"
+        + "      count: 0\n"
+        + "      open: false\n"
+        + "   commands:\n"
+        + "   -  name: fiddle\n"
+        + "      actions:\n"
+        + "      -  do:\n"
+        + "         - set room.state.count=lots\n"
+        + "         - set room.state.open=maybe\n"
+        + "         - dec room.state.count=two\n"
+        + "         - inc room.state.light\n"
+        + "         - set room.state.missing=1\n"
+        + "         - set room.state.count={arg}\n"
+        + "         - inc room.state.count=3\n"
+        + "         - set room.state.open=true\n"
+        + "         user: fiddled\n";
+    Story s = new Yaml(new Constructor(Story.class)).load(new StringReader(yaml));
+    StringWriter out = new StringWriter();
+    RoomEngine.verifyRoom(s.getVars(), s.getCommands(), s.getRooms().get(0), new PrintWriter(out, true));
+    String report = out.toString();
+    assertTrue(report, report.contains("FAIL"));
+    assertTrue(report, report.contains("[set room.state.count=lots]"));
+    assertTrue(report, report.contains("[set room.state.open=maybe]"));
+    assertTrue(report, report.contains("[dec room.state.count=two]"));
+    assertTrue(report, report.contains("[inc room.state.light]"));
+    assertTrue(report, report.contains("[set room.state.missing=1]"));
+    assertFalse(report, report.contains("{arg}]"));
+    assertFalse(report, report.contains("[inc room.state.count=3]"));
+    assertFalse(report, report.contains("[set room.state.open=true]"));
+  }
+
+  @Test
+  public void verifyRoomReportsBadLists() {
+    String yaml = "id: test\n"
+        + "revision: '1'\n"
+        + "rooms:\n"
+        + "-  name: Start\n"
+        + "   id: start\n"
+        + "   commands:\n"
+        + "   -  name: go\n"
+        + "      actions:\n"
+        + "      -  condition: '{arg} in []'\n"
+        + "         user: empty\n"
+        + "      -  condition: '{arg} in [a, , b]'\n"
+        + "         user: gap\n"
+        + "      -  condition: '{arg} in [\"a b\", ''c'']'\n"
+        + "         user: quoted\n";
+    Story s = new Yaml(new Constructor(Story.class)).load(new StringReader(yaml));
+    StringWriter out = new StringWriter();
+    RoomEngine.verifyRoom(s.getVars(), s.getCommands(), s.getRooms().get(0), new PrintWriter(out, true));
+    String report = out.toString();
+    assertTrue(report, report.contains("[{arg} in []]"));
+    assertTrue(report, report.contains("[{arg} in [a, , b]]"));
+    assertFalse(report, report.contains("[{arg} in [\"a b\", 'c']]"));
+  }
+}